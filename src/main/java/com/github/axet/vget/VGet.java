@@ -3,23 +3,32 @@ package com.github.axet.vget;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 
-import com.github.axet.threads.LimitThreadPool;
 import com.github.axet.vget.info.VGetParser;
 import com.github.axet.vget.info.VideoFileInfo;
 import com.github.axet.vget.info.VideoInfo;
 import com.github.axet.vget.info.VideoInfo.States;
+import com.github.axet.vget.mux.Mp4Mux;
 import com.github.axet.vget.vhs.VimeoParser;
 import com.github.axet.vget.vhs.YouTubeParser;
 import com.github.axet.wget.Direct;
-import com.github.axet.wget.DirectMultipart;
 import com.github.axet.wget.DirectRange;
 import com.github.axet.wget.DirectSingle;
 import com.github.axet.wget.RetryWrap;
@@ -43,6 +52,42 @@ public class VGet {
     // (exists files)
     protected File targetForce = null;
 
+    // shared download executor. null - create private one on first download
+    protected VGetPool pool;
+
+    // shared bandwidth budget. null - unlimited
+    protected VGetBandwidth bandwidth;
+
+    // join video and audio streams into one file after download
+    protected boolean mux = false;
+    // muxed file, null if streams kept separate
+    protected File muxTarget;
+
+    // typed events. null - notify runnable only
+    protected VGetListener listener;
+
+    // process wide metrics, shared by all downloads and parsers
+    protected static volatile VGetMetrics metrics = VGetMetrics.NONE;
+
+    // retry policy. null - default policy
+    protected VGetRetry retryPolicy;
+    // throw VGetRetry.Deferred instead of sleeping between retries
+    protected boolean defer = false;
+    // retry stopped by VGetRetry.Deferred, continued on next extract() / download() call
+    protected Throwable deferred;
+    // failures in a row
+    protected int attempt;
+    // first failure in a row time
+    protected long first;
+    // bytes downloaded at last failure
+    protected long progress = -1;
+    // stream url failed on last download attempt, null - video page (extraction)
+    protected volatile URL failed;
+    // keep "target.vget" journal next to target files, resume from it after restart
+    protected boolean journal = true;
+    // target directory name indexes opened by current extract() / download() call
+    protected Map<File, VGetNames> names = new HashMap<File, VGetNames>();
+
     /**
      * extract video information constructor
      * 
@@ -62,6 +107,21 @@ public class VGet {
         this.targetDir = targetDir;
     }
 
+    /**
+     * 
+     * @param info
+     *            download info
+     * @param targetDir
+     *            target directory
+     * @param pool
+     *            shared download executor
+     */
+    public VGet(VideoInfo info, File targetDir, VGetPool pool) {
+        this.info = info;
+        this.targetDir = targetDir;
+        this.pool = pool;
+    }
+
     /**
      * Set targetFile manually after you call .extract()
      * 
@@ -88,6 +148,242 @@ public class VGet {
         this.targetDir = targetDir;
     }
 
+    /**
+     * Set shared download executor. Use the same pool for all VGet instances to limit number of threads and concurrent
+     * streams per host for whole application.
+     * 
+     * @param pool
+     *            shared pool
+     */
+    public void setPool(VGetPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set shared bandwidth budget. Budget split between all active streams using the same VGetBandwidth object.
+     * 
+     * @param bandwidth
+     *            bandwidth budget, null - unlimited
+     */
+    public void setBandwidth(VGetBandwidth bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public VGetBandwidth getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Join separate video and audio streams into one file after download. Only fragmented mp4 streams (YouTube DASH)
+     * supported, other streams kept as separate files.
+     * 
+     * @param mux
+     *            true to mux
+     */
+    public void setMux(boolean mux) {
+        this.mux = mux;
+    }
+
+    public boolean getMux() {
+        return mux;
+    }
+
+    /**
+     * @return muxed file, or null if streams were not muxed
+     */
+    public File getMuxTarget() {
+        return muxTarget;
+    }
+
+    /**
+     * Set typed events listener. Listener called in addition to notify runnable, wrap it with VGetCoalesce to limit
+     * onBytes() rate.
+     * 
+     * @param listener
+     *            listener or null
+     */
+    public void setListener(VGetListener listener) {
+        this.listener = listener;
+    }
+
+    public VGetListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Set process wide metrics. Parsers and downloads report phase timings, stream speeds and retries to it.
+     * 
+     * @param m
+     *            metrics or null to disable
+     */
+    public static void setMetrics(VGetMetrics m) {
+        metrics = m == null ? VGetMetrics.NONE : m;
+    }
+
+    public static VGetMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set retry policy: exponential delays, maximum attempts and deadline.
+     * 
+     * @param policy
+     *            policy or null for default one
+     */
+    public void setRetryPolicy(VGetRetry policy) {
+        this.retryPolicy = policy;
+    }
+
+    public VGetRetry getRetryPolicy() {
+        VGetRetry p = retryPolicy;
+        if (p == null)
+            p = new VGetRetry();
+        return p;
+    }
+
+    /**
+     * Do not block calling thread during retry delays. extract() and download() throw VGetRetry.Deferred, caller
+     * has to call the same method again after VGetRetry.Deferred.getDelay() ms. VGetQueue uses it to free its threads.
+     * 
+     * @param defer
+     *            true to throw VGetRetry.Deferred
+     */
+    public void setDefer(boolean defer) {
+        this.defer = defer;
+    }
+
+    public boolean getDefer() {
+        return defer;
+    }
+
+    /**
+     * Keep download journal next to every target file ("target.vget"), deleted when download finished. New VGet
+     * for the same video and target directory finds it when choosing target names and continues download from it.
+     * 
+     * @param journal
+     *            false to disable
+     */
+    public void setJournal(boolean journal) {
+        this.journal = journal;
+    }
+
+    public boolean getJournal() {
+        return journal;
+    }
+
+    /**
+     * Retry cause name for metrics.
+     * 
+     * @param e
+     *            retry exception
+     * @return exception class name, with http code for DownloadIOCodeError
+     */
+    public static String cause(Throwable e) {
+        if (e instanceof DownloadIOCodeError)
+            return e.getClass().getSimpleName() + ":" + ((DownloadIOCodeError) e).getCode();
+        return e.getClass().getSimpleName();
+    }
+
+    /**
+     * Check if failure came from the server: http error code or connection failure. Local errors (disk full, bad
+     * target) do not count for host circuit breaker.
+     * 
+     * @param e
+     *            retry exception
+     * @return true if server side failure
+     */
+    public static boolean server(Throwable e) {
+        if (e instanceof DownloadMultipartError) {
+            for (Part p : ((DownloadMultipartError) e).getInfo().getParts()) {
+                if (p.getException() != null && server(p.getException()))
+                    return true;
+            }
+            return false;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof DownloadIOCodeError)
+                return true;
+            if (t instanceof ConnectionPoolTimeoutException)
+                return false; // our own pool is busy
+            if (t instanceof SocketException || t instanceof SocketTimeoutException || t instanceof UnknownHostException
+                    || t instanceof ConnectTimeoutException || t instanceof NoHttpResponseException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Host failed on last attempt: stream host for download errors, video page host for extraction errors.
+     */
+    URL host() {
+        URL u = failed;
+        if (u == null)
+            u = info.getWeb();
+        return u;
+    }
+
+    /**
+     * Notify wrapper, sends listener events when video state changes.
+     */
+    class Events implements Runnable {
+        Runnable notify;
+        volatile States state;
+        int delay = -1;
+
+        Events(Runnable notify) {
+            this.notify = notify;
+        }
+
+        @Override
+        public void run() {
+            notify.run();
+
+            VGetListener l = listener;
+            if (l == null)
+                return;
+            VideoInfo.Snapshot snap = info.snapshot();
+            States s = snap.getState();
+            if (s == state && s != States.RETRYING)
+                return; // fast path for DOWNLOADING
+            synchronized (this) {
+                if (s != state) {
+                    state = s;
+                    delay = -1;
+                    l.onStateChange(info, s);
+                }
+                if (s == States.RETRYING) {
+                    int d = snap.getDelay();
+                    if (d != delay) {
+                        delay = d;
+                        l.onRetry(info, d, snap.getException());
+                    }
+                }
+            }
+        }
+    }
+
+    Runnable events(Runnable notify) {
+        if (notify instanceof Events)
+            return notify;
+        return new Events(notify);
+    }
+
+    /**
+     * Check if we have to move current call to the virtual thread.
+     * 
+     * @return true if pool is virtual and we are not running on virtual thread yet
+     */
+    boolean virtual() {
+        VGetPool p = getPool();
+        return p.isVirtual() && !VGetPool.isVirtual(Thread.currentThread());
+    }
+
+    synchronized public VGetPool getPool() {
+        if (pool == null)
+            pool = new VGetPool(VGetPool.DEFAULT_VIDEO_LIMIT);
+        return pool;
+    }
+
     public VideoInfo getVideo() {
         return info;
     }
@@ -109,33 +405,56 @@ public class VGet {
     }
 
     /**
-     * Drop all forbidden characters from filename
+     * Drop all forbidden characters from filename. Forbidden characters replaced with spaces, space runs collapsed,
+     * result trimmed and one trailing dot removed. Single pass, returns same string if nothing to change.
      * 
      * @param f
      *            input file name
      * @return normalized file name
      */
     public static String replaceBadChars(String f) {
-        String replace = " ";
-        f = f.replaceAll("/", replace);
-        f = f.replaceAll("\\\\", replace);
-        f = f.replaceAll(":", replace);
-        f = f.replaceAll("\\?", replace);
-        f = f.replaceAll("\\\"", replace);
-        f = f.replaceAll("\\*", replace);
-        f = f.replaceAll("<", replace);
-        f = f.replaceAll(">", replace);
-        f = f.replaceAll("\\|", replace);
-        f = f.trim();
-        f = StringUtils.removeEnd(f, ".");
-        f = f.trim();
+        int len = f.length();
+        char[] buf = new char[len];
+        int n = 0;
+        boolean changed = false;
+        for (int i = 0; i < len; i++) {
+            char c = f.charAt(i);
+            switch (c) {
+            case '/':
+            case '\\':
+            case ':':
+            case '?':
+            case '"':
+            case '*':
+            case '<':
+            case '>':
+            case '|':
+                c = ' ';
+                changed = true;
+                break;
+            }
+            if (c == ' ' && n > 0 && buf[n - 1] == ' ') {
+                changed = true;
+                continue;
+            }
+            buf[n++] = c;
+        }
 
-        String ff;
-        while (!(ff = f.replaceAll("  ", " ")).equals(f)) {
-            f = ff;
+        int start = 0;
+        int end = n;
+        while (start < end && buf[start] <= ' ')
+            start++;
+        while (start < end && buf[end - 1] <= ' ')
+            end--;
+        if (start < end && buf[end - 1] == '.') {
+            end--;
+            while (start < end && buf[end - 1] <= ' ')
+                end--;
         }
 
-        return f;
+        if (!changed && start == 0 && end == len)
+            return f;
+        return new String(buf, start, end - start);
     }
 
     public static String maxFileNameLength(String str) {
@@ -167,65 +486,215 @@ public class VGet {
     }
 
     public void retry(VGetParser user, AtomicBoolean stop, Runnable notify, Throwable e) {
-        boolean retracted = false;
-
-        while (!retracted) {
-            for (int i = RetryWrap.RETRY_DELAY; i >= 0; i--) {
-                if (stop.get())
-                    throw new DownloadInterruptedError("stop");
-                if (Thread.currentThread().isInterrupted())
-                    throw new DownloadInterruptedError("interrupted");
+        retry(user, stop, notify, e, defer);
+    }
 
-                info.setRetrying(i, e);
-                notify.run();
+    /**
+     * @param defer
+     *            throw VGetRetry.Deferred instead of sleeping. Passed per call, async runs do not touch the field
+     */
+    void retry(VGetParser user, AtomicBoolean stop, Runnable notify, Throwable e, boolean defer) {
+        Throwable last = e;
+        while (last != null) {
+            delay(stop, notify, last, defer);
+            last = reextract(user, stop, notify, last);
+        }
+    }
 
-                try {
-                    Thread.sleep(RetryWrap.RETRY_SLEEP);
-                } catch (InterruptedException ee) {
-                    throw new DownloadInterruptedError(ee);
-                }
-            }
+    /**
+     * Continue retry stopped by VGetRetry.Deferred.
+     */
+    void resume(VGetParser user, AtomicBoolean stop, Runnable notify, boolean defer) {
+        Throwable e = deferred;
+        if (e == null)
+            return;
+        deferred = null;
+        delay(stop, notify, e, 0, defer);
+        Throwable last = reextract(user, stop, notify, e);
+        if (last != null)
+            retry(user, stop, notify, last, defer);
+    }
 
-            try {
-                // if we continue to download from old source, and this
-                // proxy server is down we have to try to extract new info
-                // and try to resume download
+    /**
+     * Count failure and wait for retry policy delay and for host circuit breaker.
+     */
+    void delay(AtomicBoolean stop, Runnable notify, Throwable e, boolean defer) {
+        metrics.retry(cause(e));
+
+        long now = System.currentTimeMillis();
+        long count = progress();
+        if (count > progress) { // download moved since last failure, new failures row
+            attempt = 0;
+            first = now;
+        }
+        progress = count;
+        attempt++;
+        if (server(e))
+            getPool().circuit(host()).failure();
+
+        long d = getRetryPolicy().next(attempt, now - first);
+        if (d < 0) {
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            throw new DownloadError(e);
+        }
+        delay(stop, notify, e, d, defer);
+    }
 
-                List<VideoFileInfo> infoOldList = info.getInfo();
+    void delay(AtomicBoolean stop, Runnable notify, Throwable e, long d, boolean defer) {
+        VGetCircuit c = getPool().circuit(host());
+        long start = System.nanoTime();
+        long end = System.currentTimeMillis() + d;
+        boolean slept = false;
+        while (true) {
+            if (stop.get())
+                throw new DownloadInterruptedError("stop");
+            if (Thread.currentThread().isInterrupted())
+                throw new DownloadInterruptedError("interrupted");
+
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) {
+                left = c.check();
+                if (left <= 0)
+                    break;
+            }
 
-                user = parser(user, info.getWeb());
-                user.info(info, stop, notify);
+            info.setRetrying((int) ((left + 999) / 1000), e);
+            notify.run();
 
-                if (infoOldList != null) {
-                    // info replaced by user.info() call
-                    List<VideoFileInfo> infoNewList = info.getInfo();
+            if (defer) {
+                deferred = e;
+                throw new VGetRetry.Deferred(left, e);
+            }
 
-                    for (VideoFileInfo infoOld : infoOldList) {
-                        DownloadInfo infoNew = getNewInfo(infoNewList, infoOld);
+            try {
+                Thread.sleep(Math.min(left, RetryWrap.RETRY_SLEEP));
+                slept = true;
+            } catch (InterruptedException ee) {
+                throw new DownloadInterruptedError(ee);
+            }
+        }
+        if (slept)
+            metrics.time(VGetMetrics.RETRY, System.nanoTime() - start);
+    }
 
-                        if (infoOld != null && infoNew != null && infoOld.resume(infoNew)) {
-                            infoNew.copy(infoOld);
-                        } else {
-                            if (infoOld.targetFile != null) {
-                                FileUtils.deleteQuietly(infoOld.targetFile);
-                                infoOld.targetFile = null;
-                            }
+    /**
+     * Extract stream links again.
+     * 
+     * @return null on success or retryable exception
+     */
+    Throwable reextract(VGetParser user, AtomicBoolean stop, Runnable notify, Throwable e) {
+        try {
+            // if we continue to download from old source, and this
+            // proxy server is down we have to try to extract new info
+            // and try to resume download
+
+            List<VideoFileInfo> infoOldList = info.getInfo();
+
+            user = parser(user);
+            // cached stream urls can be the reason of failure, keep them only for network errors
+            if (!(e instanceof DownloadIOError))
+                user.invalidate(info);
+            VGetMetrics m = metrics;
+            m.reextract();
+            long start = System.nanoTime();
+            failed = null; // extraction errors count for video page host
+            user.info(info, stop, notify);
+            m.time(VGetMetrics.EXTRACT, System.nanoTime() - start);
+
+            if (infoOldList != null) {
+                // info replaced by user.info() call
+                List<VideoFileInfo> infoNewList = info.getInfo();
+
+                for (VideoFileInfo infoOld : infoOldList) {
+                    VideoFileInfo infoNew = getNewInfo(infoNewList, infoOld);
+
+                    if (infoOld != null && infoNew != null && infoOld.resume(infoNew)) {
+                        infoNew.copy(infoOld);
+                        // keep reserved target, download continues into it
+                        infoNew.targetFile = infoOld.targetFile;
+                    } else {
+                        if (infoOld.targetFile != null) {
+                            FileUtils.deleteQuietly(infoOld.targetFile);
+                            VGetJournal.delete(infoOld.targetFile);
+                            if (targetDir != null)
+                                names(targetDir).delete(infoOld.targetFile);
+                            infoOld.targetFile = null;
                         }
                     }
                 }
-                retracted = true;
-            } catch (DownloadIOCodeError ee) {
-                if (retry(ee)) {
-                    info.setState(States.RETRYING, ee);
-                    notify.run();
-                } else {
-                    throw ee;
-                }
-            } catch (DownloadRetry ee) {
+            }
+            return null;
+        } catch (DownloadIOCodeError ee) {
+            if (retry(ee)) {
                 info.setState(States.RETRYING, ee);
                 notify.run();
+                return ee;
+            } else {
+                throw ee;
             }
+        } catch (DownloadRetry ee) {
+            info.setState(States.RETRYING, ee);
+            notify.run();
+            return ee;
+        }
+    }
+
+    /**
+     * @return bytes downloaded by all streams
+     */
+    long progress() {
+        long count = 0;
+        List<VideoFileInfo> list = info.getInfo();
+        if (list != null) {
+            for (VideoFileInfo d : list)
+                count += d.getCount();
         }
+        return count;
+    }
+
+    /**
+     * Join downloaded streams into one ".mp4" file and delete stream files.
+     * 
+     * @param dinfoList
+     *            downloaded streams
+     * @param stop
+     *            stop signal boolean
+     */
+    public void mux(List<VideoFileInfo> dinfoList, AtomicBoolean stop) {
+        if (dinfoList.size() < 2)
+            return;
+
+        List<File> files = new ArrayList<File>();
+        for (VideoFileInfo dinfo : dinfoList) {
+            if (dinfo.targetFile == null || !Mp4Mux.probe(dinfo.targetFile))
+                return;
+            files.add(dinfo.targetFile);
+        }
+
+        File dir = targetDir != null ? targetDir : files.get(0).getParentFile();
+        String sfilename = maxFileNameLength(replaceBadChars(info.getTitle()));
+
+        File tmp = new File(dir, sfilename + ".mux.tmp");
+        try {
+            new Mp4Mux(files).mux(tmp, stop);
+        } catch (RuntimeException e) {
+            FileUtils.deleteQuietly(tmp);
+            throw e;
+        }
+
+        VGetNames names = names(dir);
+        for (File f : files) {
+            FileUtils.deleteQuietly(f);
+            names.delete(f);
+        }
+
+        File f = names.take(sfilename, ".mp4");
+
+        if (!tmp.renameTo(f))
+            throw new DownloadError("unable to rename " + tmp + " to " + f);
+
+        muxTarget = f;
     }
 
     // return ".ext" ex: ".mp3" ".webm"
@@ -283,8 +752,10 @@ public class VGet {
 
             dinfo.targetFile = targetForce;
 
+            restore(dinfo, dinfo.targetFile);
+
             if (dinfo.multipart()) {
-                if (!DirectMultipart.canResume(dinfo, dinfo.targetFile)) {
+                if (!VGetMultipart.canResume(dinfo, dinfo.targetFile)) {
                     FileUtils.deleteQuietly(dinfo.targetFile);
                     dinfo.reset();
                 }
@@ -309,22 +780,35 @@ public class VGet {
                 throw new RuntimeException("Set download file or directory first");
             }
 
-            File f;
-
-            Integer idupcount = 0;
-
             String sfilename = replaceBadChars(info.getTitle());
 
             sfilename = maxFileNameLength(sfilename);
 
-            do {
-                // add = " (1)"
-                String add = idupcount > 0 ? " (".concat(idupcount.toString()).concat(")") : "";
-                f = new File(targetDir, sfilename + add + ext);
-                idupcount += 1;
-            } while (exists(f, conflict));
+            VGetNames names = names(targetDir);
 
-            dinfo.targetFile = f;
+            // our own file from previous run, continue it
+            if (journal) {
+                for (File j : names.journals(sfilename, ext)) {
+                    if (!names.reserve(j))
+                        continue;
+                    if (restore(dinfo, j)) {
+                        dinfo.targetFile = j;
+                        return;
+                    }
+                    names.release(j);
+                }
+            }
+
+            // other streams of this video, any " (N)" name held by them is a conflict, caller may try another
+            // extension
+            List<File> own = new ArrayList<File>();
+            for (VideoFileInfo d : info.getInfo()) {
+                if (d != dinfo && d.targetFile != null)
+                    own.add(d.targetFile);
+            }
+
+            // add = " (1)"
+            dinfo.targetFile = names.take(sfilename, ext, own, conflict);
 
             // if we don't have resume file (targetForce==null) then we shall
             // start over.
@@ -332,6 +816,64 @@ public class VGet {
         }
     }
 
+    /**
+     * Free target name reserved in target directory index.
+     */
+    void release(File f) {
+        if (targetDir != null && f != null)
+            names(targetDir).release(f);
+    }
+
+    /**
+     * Target directory name index, opened until current extract() / download() call ends. Targets chosen by previous
+     * calls reserved again: index could be dropped meanwhile, and other VGet got the name if target were not created
+     * yet, such stream starts over with new name.
+     */
+    synchronized VGetNames names(File dir) {
+        dir = dir.getAbsoluteFile();
+        VGetNames n = names.get(dir);
+        if (n == null) {
+            n = VGetNames.open(dir);
+            names.put(dir, n);
+            List<VideoFileInfo> list = info.getInfo();
+            if (list != null) {
+                for (VideoFileInfo d : list) {
+                    if (d.targetFile == null || !dir.equals(d.targetFile.getAbsoluteFile().getParentFile()))
+                        continue;
+                    if (!n.reserve(d.targetFile)) {
+                        d.targetFile = null;
+                        d.reset();
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Return name indexes, so index of directory no one downloads to is dropped.
+     */
+    synchronized void closeNames() {
+        for (VGetNames n : names.values())
+            n.close();
+        names.clear();
+    }
+
+    /**
+     * Restore stream state from target journal, if journal enabled and target not used by other stream.
+     * 
+     * @return true if state restored
+     */
+    boolean restore(VideoFileInfo dinfo, File f) {
+        if (!journal)
+            return false;
+        for (VideoFileInfo d : info.getInfo()) {
+            if (d != dinfo && f.equals(d.targetFile))
+                return false;
+        }
+        return VGetJournal.restore(info, dinfo, f);
+    }
+
     /**
      * set targetFile for specified VideoFileInfo.
      * 
@@ -395,31 +937,54 @@ public class VGet {
      * @param notify
      *            notify executre
      */
-    public void extract(VGetParser user, AtomicBoolean stop, Runnable notify) {
+    public void extract(final VGetParser user, final AtomicBoolean stop, final Runnable notify) {
+        if (virtual()) {
+            getPool().run(new Runnable() {
+                @Override
+                public void run() {
+                    extract(user, stop, notify);
+                }
+            });
+            return;
+        }
+        try {
+            extractLoop(user, stop, events(notify), defer);
+        } finally {
+            closeNames();
+        }
+    }
+
+    void extractLoop(VGetParser user, AtomicBoolean stop, Runnable notify, boolean defer) {
         try {
             while (!done(stop)) {
                 try {
+                    resume(user, stop, notify, defer);
                     if (info.empty()) {
                         info.setState(States.EXTRACTING);
-                        user = parser(user, info.getWeb());
+                        notify.run();
+                        user = parser(user);
+                        long start = System.nanoTime();
+                        failed = null;
                         user.info(info, stop, notify);
+                        metrics.time(VGetMetrics.EXTRACT, System.nanoTime() - start);
+                        getPool().circuit(info.getWeb()).success();
                         info.setState(States.EXTRACTING_DONE);
                         notify.run();
                     }
                     return;
                 } catch (DownloadRetry e) {
-                    retry(user, stop, notify, e);
+                    retry(user, stop, notify, e, defer);
                 } catch (DownloadMultipartError e) {
                     checkFileNotFound(e);
                     checkRetry(e);
-                    retry(user, stop, notify, e);
+                    retry(user, stop, notify, e, defer);
                 } catch (DownloadIOCodeError e) {
                     if (retry(e))
-                        retry(user, stop, notify, e);
+                        retry(user, stop, notify, e, defer);
                     else
                         throw e;
                 } catch (DownloadIOError e) {
-                    retry(user, stop, notify, e);
+                    retry(user, stop, notify, e, defer);
                 }
             }
         } catch (DownloadInterruptedError e) {
@@ -481,10 +1046,164 @@ public class VGet {
         download(null, stop, notify);
     }
 
-    public void download(VGetParser user, final AtomicBoolean stop, final Runnable notify) {
+    public void download(final VGetParser user, final AtomicBoolean stop, final Runnable notify) {
+        if (virtual()) {
+            getPool().run(new Runnable() {
+                @Override
+                public void run() {
+                    download(user, stop, notify);
+                }
+            });
+            return;
+        }
         try {
+            downloadLoop(user, stop, events(notify), defer);
+        } finally {
+            closeNames();
+        }
+    }
+
+    /**
+     * Async task. Runs extract / download loop on VGetPool.getAsync() executor, retry delays wait on the pool timer
+     * without holding a thread. cancel() stops the video.
+     */
+    class Async extends CompletableFuture<VideoInfo> implements Runnable {
+        VGetParser user;
+        Runnable notify;
+        boolean download;
+        AtomicBoolean stop = new AtomicBoolean(false);
+        // running thread
+        Thread thread;
+        // pending retry timer
+        ScheduledFuture<?> timer;
+
+        Async(VGetParser user, Runnable notify, boolean download) {
+            this.user = user;
+            this.notify = events(notify != null ? notify : new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            this.download = download;
+        }
+
+        void execute() {
+            getPool().getAsync().execute(this);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            long delay = -1;
+            try {
+                if (download)
+                    downloadLoop(user, stop, notify, true);
+                else
+                    extractLoop(user, stop, notify, true);
+                complete(info);
+            } catch (VGetRetry.Deferred e) {
+                delay = e.getDelay();
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            } finally {
+                closeNames();
+                synchronized (this) {
+                    thread = null;
+                }
+                // do not leak interrupted flag to the next executor task
+                Thread.interrupted();
+            }
+            if (delay >= 0) // scheduled after cleanup, so next run never overlaps this one
+                schedule(delay);
+        }
+
+        void schedule(long delay) {
+            synchronized (this) {
+                if (stop.get()) { // cancelled during run
+                    execute();
+                    return;
+                }
+                timer = getPool().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Async.this) {
+                            if (timer == null)
+                                return; // cancel() executed task already
+                            timer = null;
+                        }
+                        execute();
+                    }
+                }, delay);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            stop.set(true);
+            ScheduledFuture<?> f;
+            synchronized (this) {
+                if (mayInterruptIfRunning && thread != null)
+                    thread.interrupt();
+                f = timer;
+                timer = null;
+            }
+            if (f != null) {
+                // waiting for retry, run it now to exit with STOP state
+                f.cancel(false);
+                execute();
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    public CompletableFuture<VideoInfo> extractAsync() {
+        return extractAsync(null, null);
+    }
+
+    /**
+     * Extract video information without blocking current thread. Future completes with VideoInfo when stream links
+     * extracted and probed, cancel() stops extraction.
+     * 
+     * @param user
+     *            user parser or null
+     * @param notify
+     *            notify runnable or null
+     * @return future
+     */
+    public CompletableFuture<VideoInfo> extractAsync(VGetParser user, Runnable notify) {
+        Async a = new Async(user, notify, false);
+        a.execute();
+        return a;
+    }
+
+    public CompletableFuture<VideoInfo> downloadAsync() {
+        return downloadAsync(null, null);
+    }
+
+    /**
+     * Extract and download video without blocking current thread. Future completes with VideoInfo when all streams
+     * downloaded (and muxed if enabled), cancel() stops download with STOP state, next download call resumes it.
+     * 
+     * @param user
+     *            user parser or null
+     * @param notify
+     *            notify runnable or null
+     * @return future
+     */
+    public CompletableFuture<VideoInfo> downloadAsync(VGetParser user, Runnable notify) {
+        Async a = new Async(user, notify, true);
+        a.execute();
+        return a;
+    }
+
+    void downloadLoop(VGetParser user, final AtomicBoolean stop, final Runnable notify, boolean defer) {
+        try {
+            resume(user, stop, notify, defer);
+
             if (empty()) {
-                extract(user, stop, notify);
+                extractLoop(user, stop, notify, defer);
             }
 
             // retry exception loop
@@ -492,12 +1211,18 @@ public class VGet {
                 try {
                     final List<VideoFileInfo> dinfoList = info.getInfo();
 
-                    final LimitThreadPool l = new LimitThreadPool(4);
+                    final VGetPool.Tasks l = getPool().tasks();
 
                     final Thread main = Thread.currentThread();
 
+                    failed = null;
+
                     // new targetFile() call
                     {
+                        // open target directory index first, it reserves targets chosen by previous calls
+                        if (targetDir != null)
+                            names(targetDir);
+
                         // update targetFile only if not been set on previous while(!done()) loops.
                         List<VideoFileInfo> targetNull = new ArrayList<VideoFileInfo>();
 
@@ -533,6 +1258,7 @@ public class VGet {
                             conflict = new AtomicBoolean(false);
                             // 2) ".content.ext"
                             for (final VideoFileInfo dinfo : targetNull) {
+                                release(dinfo.targetFile);
                                 dinfo.targetFile = null;
                                 targetFile(dinfo, getContentExt(dinfo), conflict);
                             }
@@ -544,11 +1270,13 @@ public class VGet {
                             throw new RuntimeException("bad target");
                         }
 
+                        final VGetJournal log = journal ? new VGetJournal(dinfo.targetFile) : null;
+
                         Direct directV;
 
                         if (dinfo.multipart()) {
-                            // multi part? overwrite.
-                            directV = new DirectMultipart(dinfo, dinfo.targetFile);
+                            // multi part? preallocate target and write parts in place.
+                            directV = new VGetMultipart(dinfo, dinfo.targetFile, l);
                         } else if (dinfo.getRange()) {
                             // range download? try to resume download from last
                             // position
@@ -561,6 +1289,15 @@ public class VGet {
                         }
                         final Direct direct = directV;
 
+                        final VGetBandwidth.Stream speed = bandwidth == null ? null : bandwidth.stream();
+
+                        final VGetCircuit circuit = getPool().circuit(dinfo.getSource());
+                        // stream host answered with content on this attempt
+                        final AtomicBoolean answered = new AtomicBoolean(false);
+
+                        // last count reported to the listener
+                        final AtomicLong bytes = new AtomicLong(dinfo.getCount());
+
                         final Runnable r = new Runnable() {
                             @Override
                             public void run() {
@@ -568,6 +1305,13 @@ public class VGet {
                                 case DOWNLOADING:
                                     info.setState(States.DOWNLOADING);
                                     notify.run();
+                                    if (speed != null)
+                                        speed.step(dinfo.getCount());
+                                    bytes(dinfo, bytes);
+                                    if (!answered.get() && answered.compareAndSet(false, true))
+                                        circuit.success();
+                                    if (log != null)
+                                        log.update(dinfo, false);
                                     break;
                                 case RETRYING:
                                     info.setRetrying(dinfo.getDelay(), dinfo.getException());
@@ -582,29 +1326,42 @@ public class VGet {
                         };
 
                         try {
-                            l.blockExecute(new Runnable() {
+                            l.blockExecute(dinfo.getSource(), new Runnable() {
                                 @Override
                                 public void run() {
+                                    if (speed != null)
+                                        speed.open();
+                                    long count = dinfo.getCount();
+                                    long start = System.nanoTime();
                                     try {
+                                        if (log != null)
+                                            log.open(info, dinfo);
                                         direct.download(stop, r);
                                     } catch (DownloadInterruptedError e) {
                                         // we need to handle this task error to l.waitUntilTermination()
                                         main.interrupt();
+                                    } catch (RuntimeException e) {
+                                        if (failed == null)
+                                            failed = dinfo.getSource();
+                                        throw e;
+                                    } finally {
+                                        if (log != null) {
+                                            log.update(dinfo, true);
+                                            log.close();
+                                        }
+                                        if (speed != null)
+                                            speed.close();
+                                        long time = System.nanoTime() - start;
+                                        VGetMetrics m = metrics;
+                                        m.time(VGetMetrics.DOWNLOAD, time);
+                                        m.stream(dinfo, dinfo.getCount() - count, time);
                                     }
                                 }
                             });
                         } catch (InterruptedException e) {
                             l.interrupt();
                             // wait for childs to exit
-                            boolean clear = true;
-                            while (clear) {
-                                try {
-                                    l.join();
-                                    clear = false;
-                                } catch (InterruptedException ee) {
-                                    // we got interrupted twice from main.interrupt()
-                                }
-                            }
+                            l.join();
                             throw new DownloadInterruptedError(e);
                         }
                     }
@@ -614,48 +1371,106 @@ public class VGet {
                     } catch (InterruptedException e) {
                         l.interrupt();
                         // wait for childs to exit
-                        boolean clear = true;
-                        while (clear) {
-                            try {
-                                l.join();
-                                clear = false;
-                            } catch (InterruptedException ee) {
-                                // we got interrupted twice from main.interrupt()
-                            }
-                        }
+                        l.join();
+                        // drop interrupts sent by other stopped childs, caller thread stays usable
+                        Thread.interrupted();
                         throw new DownloadInterruptedError(e);
                     }
 
+                    // stopped childs return normally and interrupt this thread, waitUntilTermination() can return
+                    // before interrupt arrives
+                    if (stop.get()) {
+                        Thread.interrupted();
+                        throw new DownloadInterruptedError("stop");
+                    }
+
+                    // rethrow stream error to the retry loop, errors too: video must not end DONE
+                    l.rethrow();
+
+                    for (VideoFileInfo dinfo : dinfoList)
+                        VGetJournal.delete(dinfo.targetFile);
+
+                    if (mux)
+                        mux(dinfoList, stop);
+
+                    for (VideoFileInfo dinfo : dinfoList)
+                        getPool().circuit(dinfo.getSource()).success();
                     info.setState(States.DONE);
                     notify.run();
                     // break while()
                     return;
                 } catch (DownloadRetry e) {
-                    retry(user, stop, notify, e);
+                    retry(user, stop, notify, e, defer);
                 } catch (DownloadMultipartError e) {
                     checkFileNotFound(e);
                     checkRetry(e);
-                    retry(user, stop, notify, e);
+                    retry(user, stop, notify, e, defer);
                 } catch (DownloadIOCodeError e) {
                     if (retry(e))
-                        retry(user, stop, notify, e);
+                        retry(user, stop, notify, e, defer);
                     else
                         throw e;
                 } catch (DownloadIOError e) {
-                    retry(user, stop, notify, e);
+                    retry(user, stop, notify, e, defer);
                 }
             }
         } catch (DownloadInterruptedError e) {
             info.setState(VideoInfo.States.STOP, e);
             notify.run();
             throw e;
+        } catch (VGetRetry.Deferred e) {
+            // RETRYING, caller calls download() again
+            throw e;
         } catch (RuntimeException e) {
             info.setState(VideoInfo.States.ERROR, e);
             notify.run();
             throw e;
+        } catch (Error e) {
+            info.setState(VideoInfo.States.ERROR, e);
+            notify.run();
+            throw e;
         }
     }
 
+    /**
+     * Report stream bytes received since last call. Multipart threads call it concurrently, counter only moves
+     * forward.
+     */
+    void bytes(VideoFileInfo dinfo, AtomicLong last) {
+        VGetListener l = listener;
+        if (l == null)
+            return;
+        long count = dinfo.getCount();
+        while (true) {
+            long prev = last.get();
+            if (count <= prev)
+                return;
+            if (last.compareAndSet(prev, count)) {
+                l.onBytes(dinfo, count - prev);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Create parser for current video. Pool async threads run parser stream probes, pool http client used for all
+     * parser requests. Shared default client limits left alone, only client set with VGetPool.setHttp() fitted to the
+     * pool per host limit.
+     * 
+     * @param user
+     *            user parser or null
+     * @return parser
+     */
+    VGetParser parser(VGetParser user) {
+        user = parser(user, info.getWeb());
+        VGetPool p = getPool();
+        if (user.getExecutor() == null)
+            user.setExecutor(p.getAsync());
+        if (p.getHttp() != null)
+            user.setHttp(p.getHttp());
+        return user;
+    }
+
     public static VGetParser parser(URL web) {
         return parser(null, web);
     }
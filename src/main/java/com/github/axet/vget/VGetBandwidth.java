@@ -0,0 +1,152 @@
+package com.github.axet.vget;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.axet.wget.info.ex.DownloadInterruptedError;
+
+/**
+ * Process wide bandwidth budget. Budget split equally between all active streams. Each stream sleeps on its download
+ * thread when it goes faster then its share.
+ */
+public class VGetBandwidth {
+    // drop accumulated credit for stalled streams after
+    public static int WINDOW = 3000;
+
+    // bytes per second, 0 - unlimited
+    protected long limit;
+    protected List<Stream> streams = new ArrayList<Stream>();
+    // increased every time share changed
+    protected int epoch;
+
+    /**
+     *
+     * @param limit
+     *            bytes per second, 0 - unlimited
+     */
+    public VGetBandwidth(long limit) {
+        this.limit = limit;
+    }
+
+    synchronized public long getLimit() {
+        return limit;
+    }
+
+    synchronized public void setLimit(long limit) {
+        this.limit = limit;
+        epoch++;
+    }
+
+    /**
+     * @return number of active streams
+     */
+    synchronized public int getActive() {
+        return streams.size();
+    }
+
+    /**
+     * @return bytes per second for each active stream, 0 - unlimited
+     */
+    synchronized public long getShare() {
+        if (limit <= 0 || streams.size() == 0)
+            return 0;
+        return Math.max(1, limit / streams.size());
+    }
+
+    synchronized int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Create new stream, not counted until open() called.
+     *
+     * @return new stream
+     */
+    public Stream stream() {
+        return new Stream();
+    }
+
+    synchronized void open(Stream s) {
+        if (!streams.contains(s)) {
+            streams.add(s);
+            epoch++;
+        }
+    }
+
+    synchronized void close(Stream s) {
+        if (streams.remove(s))
+            epoch++;
+    }
+
+    /**
+     * One download stream (VideoFileInfo). Multipart downloads share one stream between part threads: one thread
+     * sleeps for the whole stream while others wait on the stream sleep lock, so stream pauses once, not once per part
+     * thread.
+     */
+    public class Stream {
+        long start;
+        long bytes;
+        long last = -1;
+        int epoch = -1;
+        // held by thread sleeping for the stream
+        ReentrantLock sleep = new ReentrantLock();
+
+        public void open() {
+            VGetBandwidth.this.open(this);
+        }
+
+        public void close() {
+            VGetBandwidth.this.close(this);
+        }
+
+        /**
+         * Update stream progress and sleep if stream goes above its share. Part threads read total count at different
+         * times, count only moves forward.
+         *
+         * @param count
+         *            total bytes downloaded by stream
+         */
+        public void step(long count) {
+            long rate = getShare();
+            int e = getEpoch();
+
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                long delta = last < 0 ? 0 : count - last;
+                if (delta < 0) // older count from other part thread, or restarted download not past old count yet
+                    delta = 0;
+                else
+                    last = count;
+
+                if (e != epoch || now - start > WINDOW && bytes * 1000 / Math.max(1, rate) < now - start) {
+                    // share changed or stream stalled, start new measure window
+                    epoch = e;
+                    start = now;
+                    bytes = 0;
+                }
+                bytes += delta;
+            }
+
+            if (rate <= 0)
+                return;
+
+            try {
+                sleep.lockInterruptibly();
+                try {
+                    // other thread could sleep for us while we were waiting, delay counted again
+                    long delay;
+                    synchronized (this) {
+                        delay = bytes * 1000 / rate - (System.currentTimeMillis() - start);
+                    }
+                    if (delay > 0)
+                        Thread.sleep(delay);
+                } finally {
+                    sleep.unlock();
+                }
+            } catch (InterruptedException ee) {
+                throw new DownloadInterruptedError(ee);
+            }
+        }
+    }
+}
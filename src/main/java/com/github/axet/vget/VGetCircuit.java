@@ -0,0 +1,81 @@
+package com.github.axet.vget;
+
+/**
+ * Per host circuit breaker, shared by all VGet objects using same VGetPool. After number of failures in a row circuit
+ * opens and every retry to the host waits for cooldown. When cooldown passes one caller tries the host, others wait
+ * for another cooldown or until the trial succeeds.
+ */
+public class VGetCircuit {
+    // failures in a row to open circuit
+    public static int DEFAULT_FAILURES = 5;
+    // open circuit cooldown (ms)
+    public static long DEFAULT_COOLDOWN = 30 * 1000;
+
+    protected int failures;
+    protected long cooldown;
+
+    // failures in a row
+    int count;
+    // circuit open until, 0 - closed
+    long until;
+
+    public VGetCircuit() {
+        this(DEFAULT_FAILURES, DEFAULT_COOLDOWN);
+    }
+
+    /**
+     *
+     * @param failures
+     *            failures in a row to open circuit
+     * @param cooldown
+     *            open circuit cooldown (ms)
+     */
+    public VGetCircuit(int failures, long cooldown) {
+        this.failures = failures;
+        this.cooldown = cooldown;
+    }
+
+    synchronized public void failure() {
+        count++;
+        if (count >= failures)
+            until = System.currentTimeMillis() + cooldown();
+    }
+
+    synchronized public void success() {
+        count = 0;
+        until = 0;
+    }
+
+    /**
+     * Check if host can be requested. When cooldown passed, first caller gets permission and circuit stays open for
+     * others until this caller reports success() or failure().
+     *
+     * @return 0 if host can be requested, or time to wait (ms)
+     */
+    synchronized public long check() {
+        if (until == 0)
+            return 0;
+        long now = System.currentTimeMillis();
+        if (now < until)
+            return until - now;
+        until = now + cooldown();
+        return 0;
+    }
+
+    synchronized public boolean isOpen() {
+        return until != 0 && System.currentTimeMillis() < until;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public long getCooldown() {
+        return cooldown;
+    }
+
+    // randomized cooldown, so waiting callers do not wake up all at once
+    long cooldown() {
+        return cooldown / 2 + (long) (cooldown / 2 * Math.random());
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.axet.vget;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.axet.vget.info.VideoFileInfo;
+import com.github.axet.vget.info.VideoInfo;
+
+/**
+ * Rate limited listener. Bytes summed per stream and passed to the target listener at most once per interval, state
+ * changes and retries passed immediately (after pending bytes), so listener cost depends on refresh rate, not on
+ * number of packets received.
+ *
+ * Stream counters dropped when flush finds them idle and when video reaches DONE / ERROR / STOP state, so one listener
+ * can be shared by any number of videos (VGetQueue.setListener()).
+ */
+public class VGetCoalesce implements VGetListener {
+    // default refresh interval (ms)
+    public static int DEFAULT_INTERVAL = 250;
+
+    protected VGetListener listener;
+    protected long interval;
+
+    protected ConcurrentHashMap<VideoFileInfo, AtomicLong> bytes = new ConcurrentHashMap<VideoFileInfo, AtomicLong>();
+    // next flush time
+    protected volatile long next;
+
+    public VGetCoalesce(VGetListener listener) {
+        this(listener, DEFAULT_INTERVAL);
+    }
+
+    /**
+     *
+     * @param listener
+     *            target listener
+     * @param interval
+     *            minimum time between onBytes() calls (ms)
+     */
+    public VGetCoalesce(VGetListener listener, long interval) {
+        this.listener = listener;
+        this.interval = interval;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public void onBytes(VideoFileInfo file, long delta) {
+        while (true) {
+            AtomicLong l = bytes.get(file);
+            if (l == null) {
+                AtomicLong n = new AtomicLong();
+                l = bytes.putIfAbsent(file, n);
+                if (l == null)
+                    l = n;
+            }
+            l.addAndGet(delta);
+            if (bytes.get(file) == l)
+                break;
+            // counter dropped by flush meanwhile, move bytes to the new one
+            delta = l.getAndSet(0);
+            if (delta == 0)
+                break; // flush took them
+        }
+        if (System.currentTimeMillis() >= next)
+            flush(false);
+    }
+
+    @Override
+    public void onStateChange(VideoInfo info, VideoInfo.States state) {
+        flush(true);
+        switch (state) {
+        case DONE:
+        case ERROR:
+        case STOP:
+            List<VideoFileInfo> list = info.getInfo();
+            if (list != null) {
+                for (VideoFileInfo f : list) {
+                    AtomicLong l = bytes.get(f);
+                    if (l != null && l.get() == 0)
+                        bytes.remove(f, l);
+                }
+            }
+            break;
+        default:
+            break;
+        }
+        listener.onStateChange(info, state);
+    }
+
+    @Override
+    public void onRetry(VideoInfo info, int delay, Throwable e) {
+        flush(true);
+        listener.onRetry(info, delay, e);
+    }
+
+    /**
+     * Pass pending bytes to the target listener.
+     */
+    public void flush() {
+        flush(true);
+    }
+
+    synchronized void flush(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now < next)
+            return; // other thread just flushed
+        next = now + interval;
+        for (Map.Entry<VideoFileInfo, AtomicLong> e : bytes.entrySet()) {
+            long delta = e.getValue().getAndSet(0);
+            if (delta != 0)
+                listener.onBytes(e.getKey(), delta);
+            else
+                bytes.remove(e.getKey(), e.getValue()); // idle whole interval
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.github.axet.vget;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import com.github.axet.wget.info.DownloadInfo;
+import com.github.axet.wget.info.ProxyInfo;
+import com.github.axet.wget.info.URLInfo;
+import com.github.axet.wget.info.ex.DownloadRetry;
+
+/**
+ * Shared pooled http client. Keeps connections alive between extraction requests (watch page, player script, stream
+ * probes) and stream downloads, so one video does not pay for new TCP / TLS handshake on every request to the same
+ * host.
+ *
+ * Connections returned as HttpURLConnection, so wget Direct* downloads and WGet.getHtml() work on top of the pool
+ * without changes. Create one client per application (or use getDefault()) and pass it to VGetPool or VGetParser.
+ */
+public class VGetHttp {
+    // maximum connections for whole pool
+    public static int DEFAULT_TOTAL_LIMIT = 64;
+    // maximum connections per host (route)
+    public static int DEFAULT_ROUTE_LIMIT = 8;
+    // close connections idle for (seconds)
+    public static int KEEP_ALIVE = 30;
+    // keep connection alive if we have to read less then DRAIN bytes of unused body
+    public static int DRAIN = 64 * 1024;
+    // wait for free pooled connection (ms), then DownloadRetry so retry loop checks stop flag and tries again
+    public static int REQUEST_TIMEOUT = 10 * 1000;
+
+    static VGetHttp instance;
+
+    /**
+     * @return process wide client used by parsers by default
+     */
+    synchronized public static VGetHttp getDefault() {
+        if (instance == null)
+            instance = new VGetHttp();
+        return instance;
+    }
+
+    protected PoolingHttpClientConnectionManager manager;
+    protected CloseableHttpClient client;
+
+    public VGetHttp() {
+        this(DEFAULT_TOTAL_LIMIT, DEFAULT_ROUTE_LIMIT);
+    }
+
+    /**
+     *
+     * @param totalLimit
+     *            maximum connections for whole pool
+     * @param routeLimit
+     *            maximum connections per host
+     */
+    public VGetHttp(int totalLimit, int routeLimit) {
+        manager = new PoolingHttpClientConnectionManager();
+        manager.setMaxTotal(totalLimit);
+        manager.setDefaultMaxPerRoute(routeLimit);
+        client = HttpClientBuilder.create().setConnectionManager(manager).useSystemProperties()
+                .disableCookieManagement().disableContentCompression()
+                .evictIdleConnections((long) KEEP_ALIVE, TimeUnit.SECONDS).build();
+    }
+
+    public int getTotalLimit() {
+        return manager.getMaxTotal();
+    }
+
+    public int getRouteLimit() {
+        return manager.getDefaultMaxPerRoute();
+    }
+
+    public void setRouteLimit(int routeLimit) {
+        manager.setDefaultMaxPerRoute(routeLimit);
+    }
+
+    /**
+     * Raise per host connection limit to the VGetPool per host stream limit. Pool without host limit (0) runs any
+     * number of streams per host, extra streams wait REQUEST_TIMEOUT for free connection and retry.
+     *
+     * @param hostLimit
+     *            pool per host limit
+     */
+    synchronized public void fit(int hostLimit) {
+        if (hostLimit > getRouteLimit())
+            setRouteLimit(hostLimit);
+    }
+
+    /**
+     * Open connection using same settings as URLInfo.openConnection() (proxy, timeouts, user agent, referer).
+     *
+     * @param info
+     *            connection settings
+     * @param url
+     *            url to open
+     * @return not yet connected connection
+     * @throws IOException
+     *             on bad url
+     */
+    public HttpURLConnection open(URLInfo info, URL url) throws IOException {
+        Proxy proxy = null;
+        ProxyInfo p = info.getProxy();
+        if (p != null && p.proxy != null && p.proxy.type() != Proxy.Type.DIRECT)
+            proxy = p.proxy;
+
+        HttpURLConnection conn;
+        if (proxy != null && proxy.type() != Proxy.Type.HTTP) {
+            // socks proxies are not supported by pool
+            conn = (HttpURLConnection) url.openConnection(proxy);
+        } else {
+            conn = new Connection(url, proxy);
+        }
+
+        conn.setConnectTimeout(URLInfo.CONNECT_TIMEOUT);
+        conn.setReadTimeout(URLInfo.READ_TIMEOUT);
+        conn.setRequestProperty("User-Agent", info.getUserAgent());
+        if (info.getReferer() != null)
+            conn.setRequestProperty("Referer", info.getReferer().toExternalForm());
+
+        return conn;
+    }
+
+    /**
+     * Create download info for web pages loaded by parsers (WGet.getHtml()) through this client.
+     *
+     * @param url
+     *            page url
+     * @return new download info
+     */
+    public DownloadInfo info(URL url) {
+        return new DownloadInfo(url) {
+            @Override
+            public HttpURLConnection openConnection() throws IOException {
+                return open(this, getSource());
+            }
+        };
+    }
+
+    /**
+     * Release connection we no longer need. Pooled connection with small unread body kept alive, others closed.
+     *
+     * @param conn
+     *            connection
+     */
+    public static void release(HttpURLConnection conn) {
+        if (conn instanceof Connection) {
+            try {
+                ((Connection) conn).release();
+            } catch (IOException e) {
+                conn.disconnect();
+            }
+        } else {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Close all pooled connections. Client can not be used after close.
+     */
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * HttpURLConnection backed by pooled client. Error responses (non 2xx) buffered and released right after headers
+     * received, since callers usually throw on bad response code without closing connection.
+     */
+    class Connection extends HttpURLConnection {
+        Proxy proxy;
+        CloseableHttpResponse response;
+        int code;
+        String message;
+        Header[] headers;
+        byte[] error;
+        Body body;
+
+        Connection(URL url, Proxy proxy) {
+            super(url);
+            this.proxy = proxy;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (connected)
+                return;
+
+            final String m = method;
+            HttpRequestBase req = new HttpRequestBase() {
+                @Override
+                public String getMethod() {
+                    return m;
+                }
+            };
+            try {
+                req.setURI(url.toURI());
+            } catch (URISyntaxException e) {
+                throw new MalformedURLException(e.getMessage());
+            }
+            for (Map.Entry<String, List<String>> e : getRequestProperties().entrySet()) {
+                for (String v : e.getValue())
+                    req.addHeader(e.getKey(), v);
+            }
+
+            RequestConfig.Builder config = RequestConfig.custom().setConnectTimeout(getConnectTimeout())
+                    .setSocketTimeout(getReadTimeout()).setConnectionRequestTimeout(REQUEST_TIMEOUT)
+                    .setRedirectsEnabled(getInstanceFollowRedirects());
+            if (proxy != null) {
+                InetSocketAddress a = (InetSocketAddress) proxy.address();
+                config.setProxy(new HttpHost(a.getHostName(), a.getPort()));
+            }
+            req.setConfig(config.build());
+
+            HttpClientContext context = HttpClientContext.create();
+            try {
+                response = client.execute(req, context);
+            } catch (ConnectionPoolTimeoutException e) {
+                // all connections to the host busy, not a server failure
+                throw new DownloadRetry(e);
+            }
+            connected = true;
+
+            List<URI> redirects = context.getRedirectLocations();
+            if (redirects != null && !redirects.isEmpty())
+                url = redirects.get(redirects.size() - 1).toURL();
+
+            code = response.getStatusLine().getStatusCode();
+            message = response.getStatusLine().getReasonPhrase();
+            headers = response.getAllHeaders();
+
+            if (code / 100 != 2) {
+                // keep error body (if small) and release connection
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    InputStream is = entity.getContent();
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    byte[] buf = new byte[4096];
+                    int r;
+                    while (bos.size() <= DRAIN && (r = is.read(buf)) >= 0)
+                        bos.write(buf, 0, r);
+                    error = bos.toByteArray();
+                    if (bos.size() <= DRAIN)
+                        is.close(); // body fully read, keep connection alive
+                }
+                response.close();
+            }
+        }
+
+        void release() throws IOException {
+            if (!connected)
+                return;
+            if (code / 100 != 2)
+                return;
+            getInputStream().close();
+        }
+
+        @Override
+        public void disconnect() {
+            if (response == null)
+                return;
+            try {
+                // no-op if body already read and connection returned to the pool
+                response.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return proxy != null;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+            return code;
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            connect();
+            return message;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            try {
+                connect();
+            } catch (IOException e) {
+                return null;
+            }
+            for (int i = headers.length - 1; i >= 0; i--) {
+                if (headers[i].getName().equalsIgnoreCase(name))
+                    return headers[i].getValue();
+            }
+            return null;
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            try {
+                connect();
+            } catch (IOException e) {
+                return null;
+            }
+            if (n <= 0 || n > headers.length)
+                return null;
+            return headers[n - 1].getName();
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            try {
+                connect();
+            } catch (IOException e) {
+                return null;
+            }
+            if (n == 0)
+                return response.getStatusLine().toString();
+            if (n < 0 || n > headers.length)
+                return null;
+            return headers[n - 1].getValue();
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            try {
+                connect();
+            } catch (IOException e) {
+                return Collections.emptyMap();
+            }
+            Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+            map.put(null, Collections.singletonList(response.getStatusLine().toString()));
+            for (Header h : headers) {
+                List<String> l = map.get(h.getName());
+                if (l == null) {
+                    l = new ArrayList<String>();
+                    map.put(h.getName(), l);
+                }
+                l.add(h.getValue());
+            }
+            return Collections.unmodifiableMap(map);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            if (code == HTTP_NOT_FOUND || code == HTTP_GONE)
+                throw new FileNotFoundException(url.toString());
+            if (code >= 400)
+                throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url);
+            if (body == null) {
+                HttpEntity entity = response.getEntity();
+                if (entity == null)
+                    body = new Body(new ByteArrayInputStream(new byte[0]), 0);
+                else
+                    body = new Body(entity.getContent(), entity.getContentLength());
+            }
+            return body;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            if (error == null)
+                return null;
+            return new ByteArrayInputStream(error);
+        }
+
+        /**
+         * Response body. Returns connection to the pool when fully read, closes it when closed early.
+         */
+        class Body extends FilterInputStream {
+            long length;
+            long count;
+            boolean eof;
+
+            Body(InputStream in, long length) {
+                super(in);
+                this.length = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int r = super.read();
+                if (r < 0)
+                    eof = true;
+                else
+                    count++;
+                return r;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int r = super.read(b, off, len);
+                if (r < 0)
+                    eof = true;
+                else
+                    count += r;
+                return r;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!eof && (length < 0 || length - count > DRAIN)) {
+                    // reading rest of the body is more expensive then new connection
+                    response.close();
+                    return;
+                }
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.axet.vget;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.github.axet.vget.info.VideoFileInfo;
+import com.github.axet.vget.info.VideoInfo;
+import com.github.axet.vget.vhs.VimeoInfo;
+import com.github.axet.vget.vhs.VimeoParser;
+import com.github.axet.vget.vhs.YouTubeInfo;
+import com.github.axet.vget.vhs.YouTubeParser;
+import com.github.axet.wget.info.DownloadInfo;
+import com.github.axet.wget.info.DownloadInfo.Part;
+import com.github.axet.wget.info.DownloadInfo.Part.States;
+
+/**
+ * Append-only download journal, kept next to target file as "target.vget" until download finished. Header holds video
+ * id, chosen stream and stream length / content type, records hold part ranges and byte counts. Records appended at
+ * most once per DELAY and only for changed parts, last record for a part wins. Journal rewritten (compacted) on every
+ * open().
+ *
+ * Counters written only after data written to the target, so process crash never resumes over missing bytes. New VGet
+ * finds journal when choosing target name, extracts fresh urls and continues from journal counters.
+ *
+ * Journal is optional: on write failure journal closed, deleted and disabled for this download, download itself goes
+ * on and restarts from scratch if interrupted.
+ *
+ * <pre>
+ * vget 1
+ * id youtube:XXXXXXXXXXX
+ * stream MP4 H264(p720)
+ * file 0 1048576
+ * type video/mp4
+ * p 0 0 524287 524288
+ * p 1 524288 1048575 1000
+ * </pre>
+ */
+public class VGetJournal {
+    public static final String EXT = ".vget";
+    public static final String VERSION = "vget 1";
+    // min time between record appends (ms)
+    public static long DELAY = 1000;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected File file;
+    protected FileOutputStream os;
+    // write failed, journal disabled
+    protected IOException exception;
+
+    // last written counts, by part number
+    Map<Long, Long> counts = new HashMap<Long, Long>();
+    // last written ranges, parts can be split
+    Map<Long, Long> ends = new HashMap<Long, Long>();
+    long last;
+
+    /**
+     * @param target
+     *            download target file
+     */
+    public VGetJournal(File target) {
+        this.file = file(target);
+    }
+
+    public static File file(File target) {
+        return new File(target.getPath() + EXT);
+    }
+
+    public static void delete(File target) {
+        if (target != null)
+            FileUtils.deleteQuietly(file(target));
+    }
+
+    /**
+     * Video id, same for all urls of one video. Site id if known, or web url.
+     */
+    public static String id(VideoInfo info) {
+        URL web = info.getWeb();
+        String id = null;
+        if (YouTubeParser.probe(web) || VimeoParser.probe(web))
+            id = VGet.parser(web).cacheKey(info);
+        if (id == null)
+            id = web.toString();
+        return id;
+    }
+
+    /**
+     * Chosen stream quality, different quality means different stream files.
+     */
+    public static String stream(VideoInfo info) {
+        if (info instanceof YouTubeInfo)
+            return String.valueOf(((YouTubeInfo) info).getVideoQuality());
+        if (info instanceof VimeoInfo)
+            return String.valueOf(((VimeoInfo) info).getVideoQuality());
+        return "";
+    }
+
+    /**
+     * Restore stream download state from target journal.
+     *
+     * @param info
+     *            video info
+     * @param dinfo
+     *            stream with fresh urls, extracted and probed
+     * @param target
+     *            target file candidate
+     * @return true if journal belongs to the stream and state restored. false if no journal, or journal for other
+     *         video / stream
+     */
+    public static boolean restore(VideoInfo info, VideoFileInfo dinfo, File target) {
+        File f = file(target);
+        if (!f.exists() || !target.exists())
+            return false;
+
+        List<String> lines;
+        try {
+            lines = read(f);
+        } catch (IOException e) {
+            return false;
+        }
+
+        Map<String, String> header = new HashMap<String, String>();
+        TreeMap<Long, Part> parts = new TreeMap<Long, Part>();
+        for (String line : lines) {
+            int i = line.indexOf(' ');
+            if (i == -1)
+                continue; // truncated line
+            String k = line.substring(0, i);
+            String v = line.substring(i + 1);
+            if (k.equals("p")) {
+                String[] pp = v.split(" ");
+                if (pp.length != 4)
+                    continue; // truncated record
+                try {
+                    Part p = new Part();
+                    p.setNumber(Long.parseLong(pp[0]));
+                    p.setStart(Long.parseLong(pp[1]));
+                    p.setEnd(Long.parseLong(pp[2]));
+                    p.setCount(Long.parseLong(pp[3]));
+                    parts.put(p.getNumber(), p);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            } else if (!header.containsKey(k)) {
+                header.put(k, v);
+            }
+        }
+
+        int index = info.getInfo().indexOf(dinfo);
+        if (!lines.get(0).equals(VERSION) || !id(info).equals(header.get("id"))
+                || !stream(info).equals(header.get("stream"))
+                || !(index + " " + dinfo.getLength()).equals(header.get("file"))
+                || !String.valueOf(dinfo.getContentType()).equals(header.get("type")))
+            return false;
+
+        dinfo.reset();
+        if (!dinfo.getRange())
+            return true; // same stream, but download starts over
+
+        if (parts.isEmpty()) {
+            // range download, target is the journal
+            dinfo.setCount(Math.min(target.length(), dinfo.getLength()));
+            return true;
+        }
+
+        if (!covers(parts.values(), dinfo.getLength()))
+            return true; // records lost (crash in the middle of append), download starts over
+
+        DownloadInfo m = new DownloadInfo(dinfo.getSource());
+        m.setEmpty(true); // sets "extracted" flag, empty() returns false
+        m.setRange(true);
+        m.setLength(dinfo.getLength());
+        // wget creates parts list only for 3+ parts, list content replaced by journal parts
+        m.enableMultipart(Math.max(1, dinfo.getLength() / 3));
+        List<Part> list = m.getParts();
+        if (list == null)
+            return true; // tiny stream, download starts over
+        list.clear();
+        for (Part p : parts.values()) {
+            p.setState(p.getCount() == p.getLength() ? States.DONE : States.QUEUED);
+            list.add(p);
+        }
+        m.calculate();
+        dinfo.copy(m);
+        return true;
+    }
+
+    /**
+     * Check part ranges cover whole stream with no gaps and no overlaps. Multipart split moves ranges between parts,
+     * so ranges checked before resume.
+     */
+    static boolean covers(Collection<Part> parts, long length) {
+        TreeMap<Long, Part> starts = new TreeMap<Long, Part>();
+        for (Part p : parts) {
+            if (p.getCount() < 0 || p.getCount() > p.getLength())
+                return false;
+            starts.put(p.getStart(), p);
+        }
+        long next = 0;
+        for (Part p : starts.values()) {
+            if (p.getStart() != next)
+                return false;
+            next = p.getEnd() + 1;
+        }
+        return starts.size() == parts.size() && next == length;
+    }
+
+    static List<String> read(File f) throws IOException {
+        FileInputStream is = new FileInputStream(f);
+        try {
+            List<String> lines = new ArrayList<String>();
+            BufferedReader r = new BufferedReader(new InputStreamReader(is, UTF8));
+            String line;
+            while ((line = r.readLine()) != null)
+                lines.add(line);
+            if (lines.isEmpty())
+                throw new IOException("empty journal");
+            return lines;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Write header and current state, replacing old journal.
+     *
+     * @param info
+     *            video info
+     * @param dinfo
+     *            stream to journal
+     */
+    synchronized public void open(VideoInfo info, VideoFileInfo dinfo) {
+        close();
+        if (exception != null)
+            return;
+        counts.clear();
+        ends.clear();
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION).append('\n');
+        sb.append("id ").append(id(info)).append('\n');
+        sb.append("stream ").append(stream(info)).append('\n');
+        sb.append("file ").append(info.getInfo().indexOf(dinfo)).append(' ').append(dinfo.getLength()).append('\n');
+        sb.append("type ").append(dinfo.getContentType()).append('\n');
+        records(dinfo, sb);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(sb.toString().getBytes(UTF8));
+            } finally {
+                os.close();
+            }
+            // rename over old journal, crash keeps old or new one
+            if (!tmp.renameTo(file)) {
+                FileUtils.deleteQuietly(file);
+                if (!tmp.renameTo(file))
+                    throw new IOException("unable to rename " + tmp);
+            }
+            this.os = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(tmp);
+            disable(e);
+            return;
+        }
+        last = System.currentTimeMillis();
+    }
+
+    /**
+     * Append changed part counters. Called from download threads on every progress notify.
+     *
+     * @param dinfo
+     *            journaled stream
+     * @param force
+     *            ignore DELAY
+     */
+    synchronized public void update(DownloadInfo dinfo, boolean force) {
+        if (os == null)
+            return;
+        long now = System.currentTimeMillis();
+        if (!force && now - last < DELAY)
+            return;
+        last = now;
+        StringBuilder sb = new StringBuilder();
+        records(dinfo, sb);
+        if (sb.length() == 0)
+            return;
+        try {
+            os.write(sb.toString().getBytes(UTF8));
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /**
+     * Stop journaling after write failure. Partial journal deleted, so restart never resumes from it.
+     */
+    void disable(IOException e) {
+        exception = e;
+        close();
+        FileUtils.deleteQuietly(file);
+    }
+
+    /**
+     * @return write failure which disabled journal, or null
+     */
+    synchronized public IOException getException() {
+        return exception;
+    }
+
+    // only range multipart downloads can continue from the middle, other downloads journal header only
+    void records(DownloadInfo dinfo, StringBuilder sb) {
+        synchronized (dinfo) { // parts added by multipart split
+            List<Part> parts = dinfo.getParts();
+            if (!dinfo.getRange() || parts == null)
+                return;
+            for (Part p : parts) {
+                long n = p.getNumber();
+                long start = p.getStart();
+                long end = p.getEnd();
+                long count = p.getCount();
+                Long c = counts.get(n);
+                Long e = ends.get(n);
+                if (c != null && c == count && e != null && e == end)
+                    continue;
+                counts.put(n, count);
+                ends.put(n, end);
+                sb.append("p ").append(n).append(' ').append(start).append(' ').append(end).append(' ').append(count)
+                        .append('\n');
+            }
+        }
+    }
+
+    synchronized public void close() {
+        if (os != null) {
+            IOUtils.closeQuietly(os);
+            os = null;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.axet.vget;
+
+import com.github.axet.vget.info.VideoFileInfo;
+import com.github.axet.vget.info.VideoInfo;
+
+/**
+ * Typed download events. Called from extraction and download threads, in addition to the notify runnable. Use
+ * VGetCoalesce to limit event rate to UI refresh rate.
+ */
+public interface VGetListener {
+
+    /**
+     * Video state changed.
+     *
+     * @param info
+     *            video info
+     * @param state
+     *            new state
+     */
+    void onStateChange(VideoInfo info, VideoInfo.States state);
+
+    /**
+     * Stream received data.
+     *
+     * @param file
+     *            stream
+     * @param delta
+     *            bytes downloaded since previous call for this stream
+     */
+    void onBytes(VideoFileInfo file, long delta);
+
+    /**
+     * Retry countdown, called once per RetryWrap.RETRY_SLEEP.
+     *
+     * @param info
+     *            video info
+     * @param delay
+     *            seconds left before retry
+     * @param e
+     *            retry reason
+     */
+    void onRetry(VideoInfo info, int delay, Throwable e);
+
+    /**
+     * Empty listener, override only events you need.
+     */
+    public static class Adapter implements VGetListener {
+        @Override
+        public void onStateChange(VideoInfo info, VideoInfo.States state) {
+        }
+
+        @Override
+        public void onBytes(VideoFileInfo file, long delta) {
+        }
+
+        @Override
+        public void onRetry(VideoInfo info, int delay, Throwable e) {
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.axet.vget;
+
+import com.github.axet.vget.info.VideoFileInfo;
+
+/**
+ * Metrics hook. Set process wide implementation with VGet.setMetrics(), default one drops everything. Calls come from
+ * extraction and download threads, implementation has to be thread safe and fast.
+ *
+ * Phases may nest: PARSE includes DECIPHER, DECIPHER includes PLAYER on decipher cache miss, EXTRACT includes all
+ * of them and PROBE.
+ */
+public interface VGetMetrics {
+    // web page download (watch page, get_video_info, vimeo clip and config pages)
+    String PAGE = "page";
+    // html5 player script download and decipher compile
+    String PLAYER = "player";
+    // stream links parsing
+    String PARSE = "parse";
+    // signature decoding
+    String DECIPHER = "decipher";
+    // stream HEAD / range probes
+    String PROBE = "probe";
+    // whole extraction, links and probes
+    String EXTRACT = "extract";
+    // sleeping before retry
+    String RETRY = "retry";
+    // stream transfer
+    String DOWNLOAD = "download";
+
+    VGetMetrics NONE = new Adapter();
+
+    /**
+     * Phase finished.
+     *
+     * @param phase
+     *            phase name
+     * @param nanos
+     *            phase wall time
+     */
+    void time(String phase, long nanos);
+
+    /**
+     * Stream download finished or stopped.
+     *
+     * @param stream
+     *            stream
+     * @param bytes
+     *            bytes received by this download call
+     * @param nanos
+     *            download wall time
+     */
+    void stream(VideoFileInfo stream, long bytes, long nanos);
+
+    /**
+     * Video download retry.
+     *
+     * @param cause
+     *            exception class name, "DownloadIOCodeError:403" for http code errors
+     */
+    void retry(String cause);
+
+    /**
+     * Stream links extracted again after failure.
+     */
+    void reextract();
+
+    /**
+     * No-op metrics, override only what you need.
+     */
+    public static class Adapter implements VGetMetrics {
+        @Override
+        public void time(String phase, long nanos) {
+        }
+
+        @Override
+        public void stream(VideoFileInfo stream, long bytes, long nanos) {
+        }
+
+        @Override
+        public void retry(String cause) {
+        }
+
+        @Override
+        public void reextract() {
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package com.github.axet.vget;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.axet.wget.Direct;
+import com.github.axet.wget.DirectMultipart;
+import com.github.axet.wget.RetryWrap;
+import com.github.axet.wget.info.DownloadInfo;
+import com.github.axet.wget.info.DownloadInfo.Part;
+import com.github.axet.wget.info.DownloadInfo.Part.States;
+import com.github.axet.wget.info.URLInfo;
+import com.github.axet.wget.info.ex.DownloadError;
+import com.github.axet.wget.info.ex.DownloadInterruptedError;
+import com.github.axet.wget.info.ex.DownloadMultipartError;
+import com.github.axet.wget.info.ex.DownloadRetry;
+
+/**
+ * Multipart download into preallocated target. Same parts / resume logic as DirectMultipart, but target file resized
+ * to full length once before download and all part threads write through one shared FileChannel using positional
+ * writes, no seek() and no file descriptor per part.
+ *
+ * Part data buffered up to BUF_SIZE bytes before write, part counter updated only after data written, so resume never
+ * skips unwritten bytes.
+ *
+ * Parts downloaded by the stream thread itself and by up to THREAD_COUNT - 1 extra workers on the video VGetPool.Tasks
+ * group, so part downloads count against pool threads, per video and per host limits and run on virtual threads for
+ * virtual pool. Workers added only while limits have free slots right now, stream thread never waits for slots it
+ * holds; with no free slots stream downloads its parts alone.
+ *
+ * Only THREAD_COUNT parts downloaded at once, others stay QUEUED. When no queued parts left and thread is idle, part
+ * with longest estimated time left split in two: running part keeps head of its range, new QUEUED part gets the tail.
+ * Split point chosen by measured part speeds, so slow part (throttled edge) keeps less then fast one. Tail goes to DONE
+ * part freed by merging its range into adjacent DONE part, so parts list keeps its size during download and can be
+ * iterated from notify. Only when no DONE part can be freed new part appended to DownloadInfo.getParts() under
+ * DownloadInfo lock, synchronize on DownloadInfo when iterating parts from other threads.
+ */
+public class VGetMultipart extends Direct {
+    // part write buffer
+    public static int BUF_SIZE = 64 * 1024;
+    // smallest part worth new request, also margin from running part position
+    public static long MIN_PART = 512 * 1024;
+
+    protected DownloadInfo info;
+    protected File target;
+
+    protected VGetPool.Tasks tasks;
+    protected FileChannel channel;
+
+    int threads = DirectMultipart.THREAD_COUNT;
+    // extra workers executed on tasks group, queued or running
+    int workers = 0;
+    // threads downloading parts now, stream thread included
+    int running = 0;
+    // parts ended, changes every time thread gets free
+    int ended = 0;
+    boolean fatal = false;
+    // download() exited, late workers quit without taking parts
+    boolean closed = false;
+    // extra worker threads downloading parts now
+    Set<Thread> active = new HashSet<Thread>();
+    Object lock = new Object();
+
+    // current request progress for running parts
+    Map<Part, Speed> speeds = new ConcurrentHashMap<Part, Speed>();
+
+    /**
+     * Part speed for current request.
+     */
+    static class Speed {
+        long start;
+        long count;
+
+        Speed(long count) {
+            this.start = System.currentTimeMillis();
+            this.count = count;
+        }
+
+        /**
+         * @return bytes per ms
+         */
+        double get(long now, long count) {
+            return (count - this.count) / (double) Math.max(1, now - start);
+        }
+    }
+
+    /**
+     * @param info
+     *            download info
+     * @param target
+     *            target file
+     * @param tasks
+     *            video tasks group, extra part workers executed on it
+     */
+    public VGetMultipart(DownloadInfo info, File target, VGetPool.Tasks tasks) {
+        super(info, target);
+        this.info = info;
+        this.target = target;
+        this.tasks = tasks;
+    }
+
+    /**
+     * Check if we can continue download into existing target.
+     *
+     * @param info
+     *            download info
+     * @param targetFile
+     *            target file
+     * @return true if target exists and big enough for downloaded parts
+     */
+    public static boolean canResume(DownloadInfo info, File targetFile) {
+        return DirectMultipart.canResume(info, targetFile);
+    }
+
+    /**
+     * Resize target to the download length. Keeps downloaded data, so can be called on resume.
+     *
+     * @param raf
+     *            opened target
+     * @throws IOException
+     *             on write errors
+     */
+    void preallocate(RandomAccessFile raf) throws IOException {
+        long len = info.getLength();
+        if (raf.length() < len)
+            raf.setLength(len);
+    }
+
+    void write(ByteBuffer buf, long pos) throws IOException {
+        try {
+            while (buf.hasRemaining())
+                pos += channel.write(buf, pos);
+        } catch (ClosedChannelException e) {
+            // channel closed by interrupted part thread or by download() exit, no reason to retry
+            throw new DownloadInterruptedError(e);
+        }
+    }
+
+    /**
+     * Write buffered data and move part counter. Part can be shortened by split() since data were read, extra bytes
+     * dropped (new part downloads them).
+     */
+    void commit(Part part, ByteBuffer buf) throws IOException {
+        long pos = part.getStart() + part.getCount();
+        int n = (int) Math.min(buf.position(), part.getEnd() - pos + 1);
+        buf.flip();
+        buf.limit(n);
+        write(buf, pos);
+        buf.clear();
+        part.setCount(part.getCount() + n);
+        info.calculate();
+    }
+
+    void downloadPart(Part part, AtomicBoolean stop, Runnable notify) throws IOException {
+        long start = part.getStart() + part.getCount();
+        long end = part.getEnd();
+
+        if (end - start + 1 == 0)
+            return;
+
+        HttpURLConnection conn = info.openConnection();
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+
+        InputStream is = null;
+        try {
+            RetryWrap.check(conn);
+
+            is = conn.getInputStream();
+
+            speeds.put(part, new Speed(part.getCount()));
+
+            ByteBuffer buf = ByteBuffer.allocate(BUF_SIZE);
+            byte[] bytes = buf.array();
+
+            while (true) {
+                // part end can be moved by split(), check every time
+                long left = part.getLength() - part.getCount() - buf.position();
+                if (left <= 0)
+                    break;
+                int read = is.read(bytes, buf.position(), (int) Math.min(buf.remaining(), left));
+                if (read < 0)
+                    break;
+                buf.position(buf.position() + read);
+
+                if (!buf.hasRemaining() || read == left) {
+                    commit(part, buf);
+                    notify.run();
+                }
+
+                if (stop.get())
+                    throw new DownloadInterruptedError("stop");
+                if (Thread.interrupted())
+                    throw new DownloadInterruptedError("interrupted");
+                if (fatal())
+                    throw new DownloadInterruptedError("fatal");
+            }
+
+            if (buf.position() > 0) {
+                // keep data we already have, retry will continue from here
+                commit(part, buf);
+            }
+
+            if (part.getCount() != part.getLength())
+                throw new DownloadRetry("EOF before end of part");
+        } finally {
+            speeds.remove(part);
+            if (is != null)
+                is.close();
+            conn.disconnect();
+        }
+    }
+
+    boolean fatal() {
+        synchronized (lock) {
+            return fatal;
+        }
+    }
+
+    void fatal(boolean b) {
+        synchronized (lock) {
+            fatal = b;
+            lock.notifyAll();
+        }
+    }
+
+    void downloadRetry(final Part p, final AtomicBoolean stop, final Runnable notify) {
+        try {
+            RetryWrap.wrap(stop, new RetryWrap.Wrap() {
+                @Override
+                public void proxy() {
+                    info.getProxy().set();
+                }
+
+                @Override
+                public void download() throws IOException {
+                    p.setState(States.DOWNLOADING);
+                    notify.run();
+
+                    downloadPart(p, stop, notify);
+                }
+
+                @Override
+                public void retry(int delay, Throwable e) {
+                    p.setDelay(delay, e);
+                    notify.run();
+                }
+
+                @Override
+                public void moved(URL url) {
+                    p.setState(States.RETRYING);
+                    notify.run();
+                }
+            });
+            p.setState(States.DONE);
+            notify.run();
+        } catch (DownloadInterruptedError e) {
+            p.setState(States.STOP, e);
+            notify.run();
+
+            fatal(true);
+        } catch (RuntimeException e) {
+            p.setState(States.ERROR, e);
+            notify.run();
+
+            fatal(true);
+        }
+    }
+
+    /**
+     * Download parts until nothing left to take. Runs on stream thread and on extra workers.
+     */
+    void work(AtomicBoolean stop, Runnable notify) {
+        while (!fatal() && !stop.get()) {
+            Part p = next(notify);
+            if (p == null)
+                return;
+            try {
+                downloadRetry(p, stop, notify);
+            } finally {
+                synchronized (lock) {
+                    ended++;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    Runnable worker(final AtomicBoolean stop, final Runnable notify) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Thread t = Thread.currentThread();
+                synchronized (lock) {
+                    if (closed) {
+                        workers--;
+                        return;
+                    }
+                    running++;
+                    active.add(t);
+                }
+                try {
+                    work(stop, notify);
+                } finally {
+                    synchronized (lock) {
+                        active.remove(t);
+                        running--;
+                        workers--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Add extra workers while there is work for them and tasks group has free slots.
+     */
+    void spawn(AtomicBoolean stop, Runnable notify) {
+        while (pending()) {
+            synchronized (lock) {
+                if (closed || fatal || workers + 1 >= threads)
+                    return;
+                workers++;
+            }
+            boolean executed = false;
+            try {
+                executed = tasks.tryExecute(info.getSource(), worker(stop, notify));
+            } finally {
+                if (!executed) {
+                    synchronized (lock) {
+                        workers--;
+                    }
+                }
+            }
+            if (!executed)
+                return;
+        }
+    }
+
+    /**
+     * @return true if there is queued part, or running part big enough to split
+     */
+    boolean pending() {
+        synchronized (info) {
+            for (Part p : info.getParts()) {
+                if (p.getState().equals(States.QUEUED))
+                    return true;
+                if (p.getState().equals(States.DOWNLOADING) && p.getLength() - p.getCount() >= 2 * MIN_PART)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take queued part, or steal tail of the slowest running part. Part marked DOWNLOADING under DownloadInfo lock, so
+     * only one thread gets it.
+     *
+     * @return part to download or null
+     */
+    Part next(Runnable notify) {
+        Part p;
+        boolean split = false;
+        synchronized (info) {
+            p = getPart();
+            if (p == null) {
+                p = split();
+                split = p != null;
+            }
+            if (p != null)
+                p.setState(States.DOWNLOADING);
+        }
+        if (split)
+            notify.run();
+        return p;
+    }
+
+    Part getPart() {
+        synchronized (info) {
+            for (Part p : info.getParts()) {
+                if (p.getState().equals(States.QUEUED))
+                    return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Free DONE part for reuse: its range merged into adjacent DONE part, downloaded bytes and total count stay the same
+     * and parts still cover whole file, so journal restore sees same ranges.
+     *
+     * @return free part or null if no two adjacent DONE parts
+     */
+    Part free() {
+        synchronized (info) {
+            for (Part d : info.getParts()) {
+                if (!d.getState().equals(States.DONE))
+                    continue;
+                for (Part n : info.getParts()) {
+                    if (n == d || !n.getState().equals(States.DONE))
+                        continue;
+                    if (n.getEnd() + 1 == d.getStart()) {
+                        n.setEnd(d.getEnd());
+                    } else if (d.getEnd() + 1 == n.getStart()) {
+                        n.setStart(d.getStart());
+                    } else {
+                        continue;
+                    }
+                    n.setCount(n.getCount() + d.getCount());
+                    d.setCount(0);
+                    return d;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Split running part with longest estimated time left. Running part keeps head of its range, sized by its speed
+     * compared to average part speed, tail returned as QUEUED part, reused DONE part or new one.
+     *
+     * @return tail part or null if no part worth splitting
+     */
+    Part split() {
+        long now = System.currentTimeMillis();
+        synchronized (info) {
+            Part slow = null;
+            long slowLeft = 0;
+            double slowSpeed = 0;
+            double slowEta = 0;
+            double total = 0;
+            int count = 0;
+            for (Part p : info.getParts()) {
+                Speed speed = speeds.get(p);
+                if (speed == null || !p.getState().equals(States.DOWNLOADING))
+                    continue;
+                double s = speed.get(now, p.getCount());
+                total += s;
+                count++;
+                long left = p.getLength() - p.getCount();
+                if (left < 2 * MIN_PART)
+                    continue;
+                double eta = left / Math.max(s, 0.001);
+                if (slow == null || eta > slowEta) {
+                    slow = p;
+                    slowLeft = left;
+                    slowSpeed = s;
+                    slowEta = eta;
+                }
+            }
+            if (slow == null)
+                return null;
+
+            // expected speed of the new part
+            double average = total / count;
+            if (slowSpeed + average <= 0) {
+                slowSpeed = 1;
+                average = 1;
+            }
+            long keep = (long) (slowLeft * slowSpeed / (slowSpeed + average));
+            keep = Math.max(keep, MIN_PART);
+            keep = Math.min(keep, slowLeft - MIN_PART);
+
+            long pos = slow.getStart() + slow.getCount();
+
+            Part p = free();
+            boolean add = p == null;
+            if (add) {
+                p = new Part();
+                p.setNumber(info.getParts().size());
+            }
+            p.setStart(pos + keep);
+            p.setEnd(slow.getEnd());
+            p.setState(States.QUEUED);
+
+            slow.setEnd(pos + keep - 1);
+            if (add)
+                info.getParts().add(p);
+            return p;
+        }
+    }
+
+    @Override
+    public void download(AtomicBoolean stop, Runnable notify) {
+        for (Part p : info.getParts()) {
+            if (p.getState().equals(States.DONE))
+                continue;
+            p.setState(States.QUEUED);
+        }
+        info.setState(URLInfo.States.DOWNLOADING);
+        notify.run();
+
+        RandomAccessFile raf = null;
+        try {
+            try {
+                raf = new RandomAccessFile(target, "rw");
+                preallocate(raf);
+                channel = raf.getChannel();
+            } catch (IOException e) {
+                throw new DownloadError(e);
+            }
+
+            while (true) {
+                if (stop.get())
+                    throw new DownloadInterruptedError("stop");
+                if (Thread.interrupted())
+                    throw new DownloadInterruptedError("interrupted");
+
+                boolean fatal;
+                synchronized (lock) {
+                    fatal = this.fatal;
+                }
+
+                // if we start to receive errors. stop adding new tasks and wait until all active tasks be emptied
+                if (fatal) {
+                    synchronized (lock) {
+                        while (running > 0)
+                            lock.wait();
+                    }
+
+                    // check if all parts finished with interrupted, throw one interrupted
+                    boolean interrupted = true;
+                    for (Part pp : info.getParts()) {
+                        Throwable e = pp.getException();
+                        if (e == null)
+                            continue;
+                        if (e instanceof DownloadInterruptedError)
+                            continue;
+                        interrupted = false;
+                    }
+                    if (interrupted)
+                        throw new DownloadInterruptedError("multipart all interrupted");
+
+                    // ok all thread stopped. now throw the exception and let app deal with the errors
+                    throw new DownloadMultipartError(info);
+                }
+
+                int ended;
+                synchronized (lock) {
+                    ended = this.ended;
+                }
+
+                spawn(stop, notify);
+
+                // stream thread downloads parts too
+                synchronized (lock) {
+                    running++;
+                }
+                try {
+                    work(stop, notify);
+                } finally {
+                    synchronized (lock) {
+                        running--;
+                    }
+                }
+
+                // nothing left to take, wait for workers: finished part can free slot or make split possible
+                synchronized (lock) {
+                    if (running == 0 && !this.fatal && !stop.get())
+                        break; // all parts done
+                    if (ended == this.ended && !this.fatal)
+                        lock.wait(1000);
+                }
+            }
+
+            info.setState(URLInfo.States.DONE);
+            notify.run();
+        } catch (InterruptedException e) {
+            info.setState(URLInfo.States.STOP);
+            notify.run();
+
+            throw new DownloadInterruptedError(e);
+        } catch (DownloadInterruptedError e) {
+            info.setState(URLInfo.States.STOP);
+            notify.run();
+
+            throw e;
+        } catch (RuntimeException e) {
+            info.setState(URLInfo.States.ERROR);
+            notify.run();
+
+            throw e;
+        } finally {
+            // stop part workers still running after error / interrupt, and wait for them before closing target
+            boolean interrupted = false;
+            synchronized (lock) {
+                closed = true;
+                fatal = true;
+                for (Thread t : active)
+                    t.interrupt();
+                while (running > 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // ignore, data already written or download failed anyway
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.github.axet.vget;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Target directory name index, one per directory for the whole process. Directory listed once, then unique names
+ * handed out from memory: every "name (N).ext" series keeps its next free N, so 500 videos with the same title take 500
+ * names without probing " (1)", " (2)" ... again for every video. Only returned name checked on disk, to catch files
+ * created by other applications after the listing.
+ *
+ * Names compared case insensitive, so the same index works on case insensitive file systems.
+ *
+ * Index taken by open() and returned by close(), index dropped when no VGet uses its directory, next open() lists
+ * directory again. Reserved names dropped with it, VGet reserves its targets again on next open().
+ */
+public class VGetNames {
+
+    // opened indexes, by absolute directory
+    static Map<File, VGetNames> dirs = new HashMap<File, VGetNames>();
+
+    protected File dir;
+    // open() calls not closed yet, guarded by dirs
+    int users;
+
+    /**
+     * Handed out name position.
+     */
+    static class Entry {
+        String series;
+        int n;
+
+        Entry(String series, int n) {
+            this.series = series;
+            this.n = n;
+        }
+    }
+
+    // files found on disk
+    Set<String> files = new HashSet<String>();
+    // journals found on disk
+    int journals;
+    // names handed out, null entry for reserved existing files
+    Map<String, Entry> reserved = new HashMap<String, Entry>();
+    // next " (N)" to check, by series key
+    Map<String, Integer> next = new HashMap<String, Integer>();
+
+    public VGetNames(File dir) {
+        this.dir = dir;
+        String[] list = dir.list();
+        if (list != null) {
+            for (String s : list) {
+                files.add(key(s));
+                if (s.endsWith(VGetJournal.EXT))
+                    journals++;
+            }
+        }
+    }
+
+    /**
+     * Get directory index, listing directory if no one uses it yet. Call close() when done.
+     *
+     * @param dir
+     *            target directory
+     * @return name index
+     */
+    public static VGetNames open(File dir) {
+        dir = dir.getAbsoluteFile();
+        synchronized (dirs) {
+            VGetNames n = dirs.get(dir);
+            if (n == null) {
+                n = new VGetNames(dir);
+                dirs.put(dir, n);
+            }
+            n.users++;
+            return n;
+        }
+    }
+
+    /**
+     * Return index taken by open(). Last close() drops index with all reserved names.
+     */
+    public void close() {
+        synchronized (dirs) {
+            users--;
+            if (users == 0)
+                dirs.remove(dir);
+        }
+    }
+
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * File name for series entry: "name.ext", "name (1).ext", "name (2).ext" ...
+     */
+    public static String name(String name, String ext, int n) {
+        if (n == 0)
+            return name + ext;
+        return name + " (" + n + ")" + ext;
+    }
+
+    synchronized boolean taken(String k) {
+        return files.contains(k) || reserved.containsKey(k);
+    }
+
+    /**
+     * Reserve first free name of the series.
+     *
+     * @param name
+     *            file name, sanitized
+     * @param ext
+     *            extension with dot
+     * @return new target file, not existing and not used by other VGet
+     */
+    synchronized public File take(String name, String ext) {
+        return take(name, ext, null, null);
+    }
+
+    /**
+     * Reserve first free name of the series, reporting names held by other streams of the same video.
+     *
+     * @param name
+     *            file name, sanitized
+     * @param ext
+     *            extension with dot
+     * @param own
+     *            targets of other streams of the same video, or null
+     * @param conflict
+     *            set to true if any checked name held by own targets, caller may try another extension. can be null
+     * @return new target file, not existing and not used by other VGet
+     */
+    synchronized public File take(String name, String ext, Collection<File> own, AtomicBoolean conflict) {
+        Set<String> owned = new HashSet<String>();
+        if (own != null) {
+            for (File f : own) {
+                if (f != null && dir.equals(f.getAbsoluteFile().getParentFile()))
+                    owned.add(key(f.getName()));
+            }
+        }
+        String kname = key(name);
+        String kext = key(ext);
+        String series = kname + "\0" + kext;
+        Integer i = next.get(series);
+        // own names can be below series position, check them from the start
+        int n = i == null || !owned.isEmpty() ? 0 : i;
+        while (true) {
+            String k = name(kname, kext, n);
+            if (owned.contains(k) && conflict != null)
+                conflict.set(true);
+            if (taken(k)) {
+                n++;
+                continue;
+            }
+            File f = new File(dir, name(name, ext, n));
+            if (f.exists()) { // created outside
+                files.add(k);
+                n++;
+                continue;
+            }
+            reserved.put(k, new Entry(series, n));
+            next.put(series, n + 1);
+            return f;
+        }
+    }
+
+    /**
+     * Existing series files with download journal, in series order. Left by stopped or crashed downloads.
+     */
+    synchronized public List<File> journals(String name, String ext) {
+        List<File> list = new ArrayList<File>();
+        if (journals == 0)
+            return list;
+        String kname = key(name);
+        String kext = key(ext);
+        for (int n = 0;; n++) {
+            String k = name(kname, kext, n);
+            if (!files.contains(k))
+                return list;
+            if (files.contains(k + VGetJournal.EXT))
+                list.add(new File(dir, name(name, ext, n)));
+        }
+    }
+
+    /**
+     * Reserve existing file, so only one VGet continues its download.
+     *
+     * @return false if file already reserved
+     */
+    synchronized public boolean reserve(File f) {
+        String k = key(f.getName());
+        if (reserved.containsKey(k))
+            return false;
+        reserved.put(k, null);
+        return true;
+    }
+
+    /**
+     * Free reserved name, target not used anymore. Name can be handed out again.
+     */
+    synchronized public void release(File f) {
+        if (f == null)
+            return;
+        Entry e = reserved.remove(key(f.getName()));
+        if (e == null)
+            return;
+        Integer n = next.get(e.series);
+        if (n != null && e.n < n)
+            next.put(e.series, e.n);
+    }
+
+    /**
+     * Target deleted from disk.
+     */
+    synchronized public void delete(File f) {
+        if (f == null)
+            return;
+        release(f);
+        String k = key(f.getName());
+        files.remove(k);
+        if (files.remove(k + VGetJournal.EXT))
+            journals--;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+}
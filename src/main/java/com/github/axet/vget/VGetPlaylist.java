@@ -0,0 +1,241 @@
+package com.github.axet.vget;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.axet.vget.info.VGetParser;
+import com.github.axet.vget.info.VGetPlaylistParser;
+import com.github.axet.vget.info.VideoInfo;
+import com.github.axet.vget.vhs.VimeoPlaylistParser;
+import com.github.axet.vget.vhs.YouTubePlaylistParser;
+
+/**
+ * Playlist / channel iterator. List pages loaded when needed, next videos extracted in parallel in front of the
+ * consumer, up to look-ahead limit. Only one list page and look-ahead videos kept in memory, so long lists start
+ * downloading right away and do not grow memory.
+ */
+public class VGetPlaylist implements Iterator<VGetPlaylist.Entry> {
+    // videos extracted in front of the consumer
+    public static int DEFAULT_LOOKAHEAD = 4;
+
+    /**
+     * Playlist video. Extraction finished (or failed) when returned by next().
+     */
+    public static class Entry {
+        VGet vget;
+        VGetParser user;
+        CompletableFuture<VideoInfo> extract;
+
+        Entry(VGet vget, VGetParser user, CompletableFuture<VideoInfo> extract) {
+            this.vget = vget;
+            this.user = user;
+            this.extract = extract;
+        }
+
+        public VGet getVGet() {
+            return vget;
+        }
+
+        public VGetParser getUser() {
+            return user;
+        }
+
+        public VideoInfo getVideo() {
+            return vget.getVideo();
+        }
+
+        /**
+         * @return extraction exception or null
+         */
+        public Throwable getException() {
+            try {
+                extract.join();
+                return null;
+            } catch (RuntimeException e) {
+                return e.getCause() != null ? e.getCause() : e;
+            }
+        }
+
+        public void download(AtomicBoolean stop, Runnable notify) {
+            vget.download(user, stop, notify);
+        }
+    }
+
+    protected VGetPlaylistParser list;
+    protected File targetDir;
+    protected VGetPool pool;
+    protected int lookahead;
+    protected AtomicBoolean stop = new AtomicBoolean(false);
+    protected Runnable notify = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    // current page urls not yet started
+    ArrayDeque<URL> urls = new ArrayDeque<URL>();
+    // started extractions in list order
+    ArrayDeque<Entry> ahead = new ArrayDeque<Entry>();
+    boolean end = false;
+    // list page failure, list ended on it
+    protected volatile Throwable exception;
+
+    public VGetPlaylist(URL web, File targetDir, VGetPool pool) {
+        this(parser(web), targetDir, pool, DEFAULT_LOOKAHEAD);
+    }
+
+    /**
+     *
+     * @param list
+     *            list parser
+     * @param targetDir
+     *            target directory for all videos
+     * @param pool
+     *            shared executor for extractions and downloads
+     * @param lookahead
+     *            videos extracted in front of the consumer
+     */
+    public VGetPlaylist(VGetPlaylistParser list, File targetDir, VGetPool pool, int lookahead) {
+        if (lookahead <= 0)
+            throw new IllegalArgumentException("lookahead must be positive");
+        this.list = list;
+        this.targetDir = targetDir;
+        this.pool = pool;
+        this.lookahead = lookahead;
+        if (pool.getHttp() != null)
+            list.setHttp(pool.getHttp());
+    }
+
+    public static boolean probe(URL web) {
+        return YouTubePlaylistParser.probe(web) || VimeoPlaylistParser.probe(web);
+    }
+
+    public static VGetPlaylistParser parser(URL web) {
+        if (YouTubePlaylistParser.probe(web))
+            return new YouTubePlaylistParser(web);
+        if (VimeoPlaylistParser.probe(web))
+            return new VimeoPlaylistParser(web);
+        throw new RuntimeException("unsupported playlist");
+    }
+
+    /**
+     * Video parser for list entry. Override to use custom parsers.
+     *
+     * @param web
+     *            video url
+     * @return parser
+     */
+    protected VGetParser video(URL web) {
+        return VGet.parser(web);
+    }
+
+    /**
+     * Set notify called on list page retries.
+     */
+    public void setNotify(Runnable notify) {
+        this.notify = notify;
+    }
+
+    public int getLookahead() {
+        return lookahead;
+    }
+
+    /**
+     * Start extractions up to look-ahead limit, loading next list page if needed.
+     */
+    synchronized void fill() {
+        while (ahead.size() < lookahead) {
+            if (stop.get())
+                return;
+            URL u = urls.poll();
+            if (u == null) {
+                if (end)
+                    return;
+                List<URL> page;
+                try {
+                    page = list.next(stop, notify);
+                } catch (RuntimeException e) {
+                    // list ends here, videos already started still returned by next()
+                    if (!stop.get())
+                        exception = e;
+                    end = true;
+                    return;
+                }
+                if (page == null)
+                    end = true;
+                else
+                    urls.addAll(page);
+                continue;
+            }
+            VGetParser user = video(u);
+            VGet v = new VGet(user.info(u), targetDir, pool);
+            ahead.add(new Entry(v, user, v.extractAsync(user, null)));
+        }
+    }
+
+    /**
+     * Load list pages until next video found. Blocks on list page download. List page failure thrown once all videos
+     * before it returned by next().
+     */
+    @Override
+    synchronized public boolean hasNext() {
+        fill();
+        if (!ahead.isEmpty())
+            return true;
+        Throwable e = exception;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e != null)
+            throw new RuntimeException(e);
+        return false;
+    }
+
+    /**
+     * Next video. Blocks until its extraction finished, extraction failures left for download() retry loop.
+     */
+    @Override
+    public Entry next() {
+        Entry e;
+        synchronized (this) {
+            if (ahead.isEmpty() && !hasNext())
+                throw new NoSuchElementException();
+            e = ahead.poll();
+            fill(); // never throws, polled entry always returned
+        }
+        e.getException(); // wait
+        return e;
+    }
+
+    /**
+     * Stop list loading and cancel look-ahead extractions.
+     */
+    public void stop() {
+        stop.set(true);
+        synchronized (this) {
+            for (Entry e : ahead)
+                e.extract.cancel(true);
+            ahead.clear();
+            urls.clear();
+        }
+    }
+
+    public boolean isStopped() {
+        return stop.get();
+    }
+
+    /**
+     * List page failure. hasNext() throws it to the caller after all videos before it returned, VGetQueue stops
+     * feeding the list on it and calls queue notify, already fed videos keep going.
+     *
+     * @return list page exception or null
+     */
+    public Throwable getException() {
+        return exception;
+    }
+}
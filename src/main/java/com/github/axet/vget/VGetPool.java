@@ -0,0 +1,570 @@
+package com.github.axet.vget;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.axet.wget.info.ex.DownloadInterruptedError;
+
+/**
+ * Shared download executor. Create one pool per application and pass it to every VGet instance, so all downloads share
+ * same bounded set of threads and same per host limits.
+ *
+ * VGet objects created without pool get its own private pool with DEFAULT_VIDEO_LIMIT threads.
+ *
+ * Use VGetPool.virtual() on java 21+ to run every extraction, stream download and retry delay on virtual threads, so
+ * application does not need to size thread pools at all.
+ */
+public class VGetPool {
+    // maximum concurrent streams (video/audio) per one video
+    public static int DEFAULT_VIDEO_LIMIT = 4;
+    // keep idle threads for
+    public static int KEEP_ALIVE = 60;
+
+    protected ExecutorService executor;
+    // concurrent streams per video
+    protected int videoLimit;
+    // concurrent streams per host, 0 - unlimited
+    protected int hostLimit;
+
+    // run VGet extract() / download() on executor threads
+    protected boolean virtual;
+
+    // shared http client for parsers and downloads. null - parser default
+    protected VGetHttp http;
+
+    protected ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+
+    protected ConcurrentMap<String, VGetCircuit> circuits = new ConcurrentHashMap<String, VGetCircuit>();
+
+    // VGet.extractAsync() / downloadAsync() threads, created on first use
+    protected ExecutorService async;
+    // retry delays timer, created on first use
+    protected ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Create virtual threads pool. Requires java 21+.
+     *
+     * @param videoLimit
+     *            maximum concurrent streams per video
+     * @param hostLimit
+     *            maximum concurrent streams per host, 0 - unlimited
+     * @return new pool
+     */
+    public static VGetPool virtual(int videoLimit, int hostLimit) {
+        ExecutorService e;
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            e = (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException ee) {
+            throw new RuntimeException("virtual threads are not supported by this jvm", ee);
+        } catch (Exception ee) {
+            throw new RuntimeException(ee);
+        }
+        VGetPool pool = new VGetPool(e, videoLimit, hostLimit);
+        pool.virtual = true;
+        return pool;
+    }
+
+    /**
+     * Check if thread is virtual. Always false for java before 21.
+     *
+     * @param t
+     *            thread to check
+     * @return true if thread is virtual
+     */
+    public static boolean isVirtual(Thread t) {
+        try {
+            Method m = Thread.class.getMethod("isVirtual");
+            return (Boolean) m.invoke(t);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Create pool with fixed number of threads shared by all downloads.
+     *
+     * @param threads
+     *            maximum threads for whole pool
+     */
+    public VGetPool(int threads) {
+        this(threads, DEFAULT_VIDEO_LIMIT, 0);
+    }
+
+    /**
+     *
+     * @param threads
+     *            maximum threads for whole pool
+     * @param videoLimit
+     *            maximum concurrent streams per video
+     * @param hostLimit
+     *            maximum concurrent streams per host, 0 - unlimited
+     */
+    public VGetPool(int threads, int videoLimit, int hostLimit) {
+        this(create(threads), videoLimit, hostLimit);
+    }
+
+    /**
+     * Use application executor for downloads.
+     *
+     * @param executor
+     *            shared executor
+     * @param videoLimit
+     *            maximum concurrent streams per video
+     * @param hostLimit
+     *            maximum concurrent streams per host, 0 - unlimited
+     */
+    public VGetPool(ExecutorService executor, int videoLimit, int hostLimit) {
+        if (videoLimit <= 0)
+            throw new IllegalArgumentException("videoLimit must be positive");
+        this.executor = executor;
+        this.videoLimit = videoLimit;
+        this.hostLimit = hostLimit;
+    }
+
+    static ExecutorService create(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor e = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "VGetPool-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        e.allowCoreThreadTimeOut(true);
+        return e;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Executor for VGet.extractAsync() / downloadAsync() tasks. Async task waits for its streams, so it can not share
+     * bounded download executor: unbounded executor used instead, virtual pool uses its own executor. Videos waiting
+     * for retry do not hold threads.
+     *
+     * @return executor
+     */
+    synchronized public ExecutorService getAsync() {
+        if (virtual)
+            return executor;
+        if (async == null) {
+            final AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor e = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "VGetPool-async-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            async = e;
+        }
+        return async;
+    }
+
+    /**
+     * Run task after delay on the pool timer thread. Task has to be short, move long work to executor.
+     *
+     * @param r
+     *            task
+     * @param delay
+     *            delay (ms)
+     * @return scheduled task
+     */
+    public ScheduledFuture<?> schedule(Runnable r, long delay) {
+        ScheduledThreadPoolExecutor t;
+        synchronized (this) {
+            if (timer == null) {
+                timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "VGetPool-timer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                timer.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+                timer.allowCoreThreadTimeOut(true);
+            }
+            t = timer;
+        }
+        return t.schedule(r, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public int getVideoLimit() {
+        return videoLimit;
+    }
+
+    public int getHostLimit() {
+        return hostLimit;
+    }
+
+    /**
+     * Set http client for all videos downloaded using this pool. Client per host connection limit raised to the pool
+     * per host limit, so streams allowed by the pool do not wait for connections.
+     *
+     * @param http
+     *            pooled client, null - parser default
+     */
+    public void setHttp(VGetHttp http) {
+        if (http != null)
+            http.fit(hostLimit);
+        this.http = http;
+    }
+
+    public VGetHttp getHttp() {
+        return http;
+    }
+
+    /**
+     * Get host semaphore
+     *
+     * @param url
+     *            stream url
+     * @return semaphore or null if host limit is not set
+     */
+    public Semaphore host(URL url) {
+        if (hostLimit <= 0)
+            return null;
+        String host = url.getHost().toLowerCase();
+        Semaphore s = hosts.get(host);
+        if (s == null) {
+            s = new Semaphore(hostLimit, true);
+            Semaphore old = hosts.putIfAbsent(host, s);
+            if (old != null)
+                s = old;
+        }
+        return s;
+    }
+
+    /**
+     * Get host circuit breaker
+     *
+     * @param url
+     *            failed request url: stream url for download errors, video web page for extraction errors
+     * @return circuit breaker shared by all videos using this host
+     */
+    public VGetCircuit circuit(URL url) {
+        String host = url.getHost().toLowerCase();
+        VGetCircuit c = circuits.get(host);
+        if (c == null) {
+            c = new VGetCircuit();
+            VGetCircuit old = circuits.putIfAbsent(host, c);
+            if (old != null)
+                c = old;
+        }
+        return c;
+    }
+
+    /**
+     * @return true if VGet shall move extract() and download() calls from caller thread to the pool executor.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Run task on executor thread and wait for result. Interrupting current thread interrupts the task. Task exceptions
+     * rethrown on current thread.
+     *
+     * @param r
+     *            task to run
+     */
+    public void run(final Runnable r) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] e = new Throwable[1];
+        final Thread[] t = new Thread[1];
+        final Object lock = new Object();
+        final boolean[] interrupted = new boolean[1];
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (lock) {
+                        if (interrupted[0])
+                            throw new DownloadInterruptedError("interrupted");
+                        t[0] = Thread.currentThread();
+                    }
+                    r.run();
+                } catch (Throwable ee) {
+                    e[0] = ee;
+                } finally {
+                    synchronized (lock) {
+                        t[0] = null;
+                    }
+                    latch.countDown();
+                }
+            }
+        });
+
+        boolean clear = true;
+        while (clear) {
+            try {
+                latch.await();
+                clear = false;
+            } catch (InterruptedException ee) {
+                synchronized (lock) {
+                    interrupted[0] = true;
+                    if (t[0] != null)
+                        t[0].interrupt();
+                }
+            }
+        }
+
+        if (e[0] instanceof RuntimeException)
+            throw (RuntimeException) e[0];
+        if (e[0] instanceof Error)
+            throw (Error) e[0];
+        if (e[0] != null)
+            throw new RuntimeException(e[0]);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        synchronized (this) {
+            if (async != null)
+                async.shutdown();
+            if (timer != null)
+                timer.shutdown();
+        }
+    }
+
+    /**
+     * Create tasks group for one download attempt.
+     *
+     * @return new tasks group
+     */
+    public Tasks tasks() {
+        return new Tasks();
+    }
+
+    /**
+     * Group of stream downloads for one video. Tracks own threads, so we can interrupt and wait for them without
+     * touching other videos running on the same executor.
+     */
+    public class Tasks {
+        ReentrantLock lock = new ReentrantLock();
+        Condition done = lock.newCondition();
+        Semaphore video = new Semaphore(videoLimit, true);
+        List<Thread> threads = new ArrayList<Thread>();
+        int active = 0;
+        boolean interrupted = false;
+        Throwable e;
+
+        /**
+         * Execute stream download. Blocks until video and host limits allow to start new stream.
+         *
+         * @param source
+         *            stream url, used for host limits
+         * @param r
+         *            download task
+         * @throws InterruptedException
+         *             if waiting for free slot were interrupted
+         */
+        public void blockExecute(URL source, final Runnable r) throws InterruptedException {
+            final Semaphore host = host(source);
+
+            video.acquire();
+            if (host != null) {
+                try {
+                    host.acquire();
+                } catch (InterruptedException e) {
+                    video.release();
+                    throw e;
+                }
+            }
+
+            execute(host, r);
+
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+
+        /**
+         * Execute task if video and host limits allow it right now, without waiting. Used by multipart streams to add
+         * part workers: stream thread keeps downloading parts itself, so it never waits for the slots it holds.
+         *
+         * @param source
+         *            stream url, used for host limits
+         * @param r
+         *            task
+         * @return false if no free slot, task not executed
+         */
+        public boolean tryExecute(URL source, Runnable r) {
+            Semaphore host = host(source);
+
+            if (!video.tryAcquire())
+                return false;
+            if (host != null && !host.tryAcquire()) {
+                video.release();
+                return false;
+            }
+
+            execute(host, r);
+            return true;
+        }
+
+        // slots acquired, run task on executor and release slots when done
+        void execute(final Semaphore host, final Runnable r) {
+            lock.lock();
+            try {
+                active++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Thread t = Thread.currentThread();
+                        try {
+                            lock.lock();
+                            try {
+                                if (interrupted)
+                                    return;
+                                threads.add(t);
+                            } finally {
+                                lock.unlock();
+                            }
+                            r.run();
+                        } catch (Throwable e) {
+                            lock.lock();
+                            try {
+                                if (Tasks.this.e == null)
+                                    Tasks.this.e = e;
+                            } finally {
+                                lock.unlock();
+                            }
+                        } finally {
+                            lock.lock();
+                            try {
+                                threads.remove(t);
+                            } finally {
+                                lock.unlock();
+                            }
+                            // do not leak interrupted flag to the next executor task
+                            Thread.interrupted();
+                            if (host != null)
+                                host.release();
+                            video.release();
+                            release();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                if (host != null)
+                    host.release();
+                video.release();
+                release();
+                throw e;
+            }
+        }
+
+        void release() {
+            lock.lock();
+            try {
+                active--;
+                done.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait until all tasks ends.
+         *
+         * @throws InterruptedException
+         *             if current thread were interrupted
+         */
+        public void waitUntilTermination() throws InterruptedException {
+            lock.lock();
+            try {
+                while (active > 0)
+                    done.await();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Interrupt running tasks and drop queued ones.
+         */
+        public void interrupt() {
+            lock.lock();
+            try {
+                interrupted = true;
+                for (Thread t : threads)
+                    t.interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait for all tasks to exit. Ignores interrupts, which can come from child tasks.
+         */
+        public void join() {
+            boolean clear = true;
+            while (clear) {
+                try {
+                    waitUntilTermination();
+                    clear = false;
+                } catch (InterruptedException ee) {
+                    // we got interrupted twice from main.interrupt()
+                }
+            }
+        }
+
+        /**
+         * @return first exception or error thrown by task, or null
+         */
+        public Throwable getException() {
+            lock.lock();
+            try {
+                return e;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Rethrow first task exception on current thread, same way run() does. Does nothing if all tasks succeeded.
+         */
+        public void rethrow() {
+            Throwable e = getException();
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            if (e instanceof Error)
+                throw (Error) e;
+            if (e != null)
+                throw new RuntimeException(e);
+        }
+    }
+}
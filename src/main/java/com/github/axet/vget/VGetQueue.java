@@ -0,0 +1,482 @@
+package com.github.axet.vget;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.axet.vget.info.VGetParser;
+import com.github.axet.vget.info.VideoFileInfo;
+import com.github.axet.vget.info.VideoInfo;
+import com.github.axet.vget.info.VideoInfo.States;
+
+/**
+ * Batch download manager. Runs many videos with priority ordering, global limit of concurrent videos and one shared
+ * bandwidth budget.
+ *
+ * Jobs waiting for free slot have VideoInfo.States.QUEUE state. Higher priority jobs started first, jobs with same
+ * priority started in order they were added.
+ *
+ * Jobs waiting for retry do not hold queue thread: job leaves the thread in RETRYING state and queued again by timer
+ * when retry delay passes.
+ */
+public class VGetQueue {
+
+    public class Job implements Runnable, Comparable<Job> {
+        VGet vget;
+        VGetParser user;
+        int priority;
+        long seq;
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Throwable exception;
+        boolean done;
+        // pending retry timer
+        ScheduledFuture<?> timer;
+
+        Job(VGet vget, VGetParser user, int priority) {
+            this.vget = vget;
+            this.user = user;
+            this.priority = priority;
+            this.seq = VGetQueue.this.seq.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            if (priority != o.priority)
+                return priority > o.priority ? -1 : 1;
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (stop.get()) {
+                    // stopped while queued
+                    getVideo().setState(States.STOP);
+                    finished(this);
+                    return;
+                }
+                vget.download(user, stop, new Runnable() {
+                    @Override
+                    public void run() {
+                        changed();
+                    }
+                });
+            } catch (VGetRetry.Deferred e) {
+                schedule(this, e.getDelay());
+                return;
+            } catch (RuntimeException e) {
+                setException(e);
+            }
+            finished(this);
+        }
+
+        synchronized void setException(Throwable e) {
+            exception = e;
+        }
+
+        synchronized public Throwable getException() {
+            return exception;
+        }
+
+        synchronized public boolean isDone() {
+            return done;
+        }
+
+        public VGet getVGet() {
+            return vget;
+        }
+
+        public VideoInfo getVideo() {
+            return vget.getVideo();
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Stop single job. Queued job will be skipped, job waiting for retry queued immediately to exit.
+         */
+        public void stop() {
+            stop.set(true);
+            ScheduledFuture<?> f;
+            synchronized (this) {
+                f = timer;
+                timer = null;
+            }
+            if (f != null) {
+                // timer task checks job.timer, so it never runs job after this point
+                f.cancel(false);
+                executor.execute(this);
+            }
+        }
+    }
+
+    protected File targetDir;
+    protected VGetPool pool;
+    protected VGetBandwidth bandwidth = new VGetBandwidth(0);
+    protected ThreadPoolExecutor executor;
+    protected boolean shutdown = false;
+    protected Runnable notify;
+    protected VGetListener listener;
+    protected VGetRetry retry;
+
+    protected AtomicLong seq = new AtomicLong();
+    protected List<Job> jobs = new ArrayList<Job>();
+    protected int pending = 0;
+    // maximum concurrent videos
+    protected int limit;
+    // playlists being fed into the queue
+    protected List<VGetPlaylist> lists = new ArrayList<VGetPlaylist>();
+
+    /**
+     *
+     * @param targetDir
+     *            target directory for all videos
+     * @param limit
+     *            maximum concurrent videos
+     */
+    public VGetQueue(File targetDir, int limit) {
+        this(targetDir, limit, new VGetPool(limit * VGetPool.DEFAULT_VIDEO_LIMIT));
+    }
+
+    /**
+     *
+     * @param targetDir
+     *            target directory for all videos
+     * @param limit
+     *            maximum concurrent videos
+     * @param pool
+     *            shared download executor for video streams
+     */
+    public VGetQueue(File targetDir, int limit, VGetPool pool) {
+        this.targetDir = targetDir;
+        this.pool = pool;
+        this.limit = limit;
+
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(limit, limit, VGetPool.KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "VGetQueue-" + count.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set process wide bandwidth limit. Split equally between all active video streams.
+     *
+     * @param limit
+     *            bytes per second, 0 - unlimited
+     */
+    public void setBandwidth(long limit) {
+        bandwidth.setLimit(limit);
+    }
+
+    public VGetBandwidth getBandwidth() {
+        return bandwidth;
+    }
+
+    public VGetPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Set notify called on every job state change.
+     *
+     * @param notify
+     *            notify runnable
+     */
+    public void setNotify(Runnable notify) {
+        this.notify = notify;
+    }
+
+    /**
+     * Set typed events listener for all videos added after this call.
+     *
+     * @param listener
+     *            listener or null
+     */
+    public void setListener(VGetListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set retry policy for all videos added after this call.
+     *
+     * @param retry
+     *            policy or null for default one
+     */
+    public void setRetryPolicy(VGetRetry retry) {
+        this.retry = retry;
+    }
+
+    public VGetRetry getRetryPolicy() {
+        return retry;
+    }
+
+    public Job add(URL web, int priority) {
+        VGetParser user = VGet.parser(web);
+        return add(user.info(web), user, priority);
+    }
+
+    public Job add(VideoInfo info, int priority) {
+        return add(info, null, priority);
+    }
+
+    /**
+     * Add video to the queue.
+     *
+     * @param info
+     *            video info
+     * @param user
+     *            user parser or null
+     * @param priority
+     *            higher priority jobs starts first
+     * @return new job
+     */
+    public Job add(VideoInfo info, VGetParser user, int priority) {
+        return add(info, user, priority, false);
+    }
+
+    Job add(VideoInfo info, VGetParser user, int priority, boolean feed) {
+        VGet v = new VGet(info, targetDir, pool);
+        v.setBandwidth(bandwidth);
+        v.setListener(listener);
+        v.setRetryPolicy(retry);
+        v.setDefer(true);
+        Job job = new Job(v, user, priority);
+        synchronized (this) {
+            if (shutdown && !feed)
+                throw new RejectedExecutionException("queue is shut down");
+            jobs.add(job);
+            pending++;
+        }
+        executor.execute(job);
+        changed();
+        return job;
+    }
+
+    public VGetPlaylist addPlaylist(URL list, int priority) {
+        VGetPlaylist p = new VGetPlaylist(list, targetDir, pool);
+        add(p, priority);
+        return p;
+    }
+
+    /**
+     * Add playlist. Videos added to the queue one by one when queue has free slot, so long lists keep constant
+     * memory. Playlist pages loaded and videos extracted in front of the queue by VGetPlaylist. join() waits for the
+     * whole list. Call clean() from time to time to drop finished jobs.
+     *
+     * List page failure ends the list, already added videos keep going. Failure kept by VGetPlaylist.getException(),
+     * queue notify called when list ends.
+     *
+     * @param list
+     *            playlist
+     * @param priority
+     *            priority of all list jobs
+     */
+    public void add(final VGetPlaylist list, final int priority) {
+        synchronized (this) {
+            if (shutdown)
+                throw new RejectedExecutionException("queue is shut down");
+            lists.add(list);
+            pending++; // list counted as pending job until fed
+        }
+        pool.getAsync().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        synchronized (VGetQueue.this) {
+                            // pending includes lists
+                            while (!list.isStopped() && pending - lists.size() >= limit)
+                                VGetQueue.this.wait();
+                        }
+                        if (list.isStopped() || !list.hasNext())
+                            return;
+                        VGetPlaylist.Entry e = list.next();
+                        Job job = add(e.getVideo(), e.getUser(), priority, true);
+                        // stop() stops lists first, then jobs. job added after stop() read jobs list.
+                        if (list.isStopped())
+                            job.stop();
+                    }
+                } catch (InterruptedException e) {
+                    list.stop();
+                } catch (RuntimeException e) {
+                    // list page failed, already fed videos keep going. failure kept by list.getException()
+                    list.stop();
+                } finally {
+                    synchronized (VGetQueue.this) {
+                        lists.remove(list);
+                    }
+                    finished(null); // calls notify, list.getException() set by now
+                }
+            }
+        });
+        changed();
+    }
+
+    void changed() {
+        Runnable n = notify;
+        if (n != null)
+            n.run();
+    }
+
+    void schedule(final Job job, long delay) {
+        synchronized (job) {
+            job.timer = pool.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (job) {
+                        if (job.timer == null)
+                            return; // stop() queued job already
+                        job.timer = null;
+                    }
+                    executor.execute(job);
+                }
+            }, delay);
+        }
+        changed();
+    }
+
+    void finished(Job job) {
+        if (job != null) {
+            synchronized (job) {
+                job.done = true;
+            }
+        }
+        boolean exit;
+        synchronized (this) {
+            pending--;
+            exit = shutdown && pending == 0;
+            notifyAll();
+        }
+        if (exit)
+            executor.shutdown();
+        changed();
+    }
+
+    synchronized public List<Job> getJobs() {
+        return new ArrayList<Job>(jobs);
+    }
+
+    /**
+     * Remove finished jobs from the queue.
+     */
+    synchronized public void clean() {
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            if (jobs.get(i).isDone())
+                jobs.remove(i);
+        }
+    }
+
+    /**
+     * @return number of jobs waiting or running
+     */
+    synchronized public int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return number of running jobs
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return total bytes downloaded by all jobs in the queue
+     */
+    public long getCount() {
+        long count = 0;
+        for (Job j : getJobs()) {
+            List<VideoFileInfo> list = j.getVideo().getInfo();
+            if (list == null)
+                continue;
+            for (VideoFileInfo d : list)
+                count += d.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return total bytes of all known streams in the queue. Streams not extracted yet are not counted.
+     */
+    public long getLength() {
+        long length = 0;
+        for (Job j : getJobs()) {
+            List<VideoFileInfo> list = j.getVideo().getInfo();
+            if (list == null)
+                continue;
+            for (VideoFileInfo d : list) {
+                Long l = d.getLength();
+                if (l != null)
+                    length += l;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Wait until all jobs finished.
+     *
+     * @throws InterruptedException
+     *             if current thread were interrupted
+     */
+    synchronized public void join() throws InterruptedException {
+        while (pending > 0)
+            wait();
+    }
+
+    /**
+     * Stop all jobs, and wait for running jobs to exit.
+     */
+    public void stop() {
+        List<VGetPlaylist> ll;
+        synchronized (this) {
+            ll = new ArrayList<VGetPlaylist>(lists);
+        }
+        for (VGetPlaylist l : ll)
+            l.stop();
+        synchronized (this) {
+            notifyAll();
+        }
+        for (Job j : getJobs())
+            j.stop();
+        boolean clear = true;
+        while (clear) {
+            try {
+                join();
+                clear = false;
+            } catch (InterruptedException e) {
+                // keep waiting, jobs are exiting
+            }
+        }
+    }
+
+    /**
+     * Stop accepting new jobs. Queued jobs and jobs waiting for retry will be finished.
+     */
+    public void shutdown() {
+        boolean exit;
+        synchronized (this) {
+            shutdown = true;
+            exit = pending == 0;
+        }
+        if (exit)
+            executor.shutdown();
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.axet.vget;
+
+import com.github.axet.wget.RetryWrap;
+import com.github.axet.wget.info.ex.DownloadError;
+
+/**
+ * Retry policy. Delay grows exponentially from first failure, randomized by jitter so many videos failed at the same
+ * time do not retry in lockstep. Policy gives up after maximum attempts or after deadline passed since first failure
+ * in a row. Attempts counter resets when download makes progress.
+ */
+public class VGetRetry {
+    // default maximum delay (ms)
+    public static long DEFAULT_MAX = 5 * 60 * 1000;
+
+    /**
+     * Thrown by VGet instead of sleeping when VGet.setDefer() is set. Caller has to call download() / extract() again
+     * after delay, VGet continues retry from where it stopped.
+     */
+    public static class Deferred extends DownloadError {
+        private static final long serialVersionUID = 1L;
+
+        long delay;
+
+        public Deferred(long delay, Throwable e) {
+            super(e);
+            this.delay = delay;
+        }
+
+        /**
+         * @return delay before next call (ms)
+         */
+        public long getDelay() {
+            return delay;
+        }
+    }
+
+    // first delay (ms)
+    protected long delay;
+    // maximum delay (ms)
+    protected long max;
+    protected double multiplier = 2;
+    // part of delay randomized, 0..1
+    protected double jitter = 0.5;
+    // maximum attempts, 0 - unlimited
+    protected int attempts;
+    // give up after (ms since first failure), 0 - unlimited
+    protected long deadline;
+
+    /**
+     * Default policy. First delay taken from RetryWrap settings, unlimited attempts.
+     */
+    public VGetRetry() {
+        this(RetryWrap.RETRY_DELAY * (long) RetryWrap.RETRY_SLEEP, DEFAULT_MAX);
+    }
+
+    /**
+     *
+     * @param delay
+     *            first delay (ms)
+     * @param max
+     *            maximum delay (ms)
+     */
+    public VGetRetry(long delay, long max) {
+        this.delay = delay;
+        this.max = max;
+    }
+
+    /**
+     * @param multiplier
+     *            delay multiplier between attempts
+     */
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * @param jitter
+     *            part of delay randomized, 0 - fixed delays, 1 - delay in range [0, delay]
+     */
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param attempts
+     *            maximum attempts in a row, 0 - unlimited
+     */
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @param deadline
+     *            give up after (ms since first failure in a row), 0 - unlimited
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Delay before next attempt.
+     *
+     * @param attempt
+     *            attempt number, starts from 1
+     * @param elapsed
+     *            time since first failure in a row (ms)
+     * @return delay (ms) or -1 to give up
+     */
+    public long next(int attempt, long elapsed) {
+        if (attempts > 0 && attempt > attempts)
+            return -1;
+        if (deadline > 0 && elapsed >= deadline)
+            return -1;
+        double d = delay * Math.pow(multiplier, attempt - 1);
+        if (d > max)
+            d = max;
+        d = d * (1 - jitter) + d * jitter * Math.random();
+        long l = (long) d;
+        if (deadline > 0)
+            l = Math.min(l, deadline - elapsed);
+        return l;
+    }
+}
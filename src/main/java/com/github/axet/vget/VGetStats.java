@@ -0,0 +1,187 @@
+package com.github.axet.vget;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.github.axet.vget.info.VideoFileInfo;
+
+/**
+ * In memory metrics. Keeps count / sum / min / max and power of two histogram per phase, stream speeds and retry
+ * counters. Values read at any time, service exposes them as it likes.
+ */
+public class VGetStats implements VGetMetrics {
+
+    /**
+     * Lock free histogram. Bucket i counts values in range [2^i, 2^(i+1)), bucket 0 includes 0.
+     */
+    public static class Histogram {
+        public static final int BUCKETS = 64;
+
+        AtomicLong count = new AtomicLong();
+        AtomicLong sum = new AtomicLong();
+        AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+        AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        public void add(long v) {
+            if (v < 0)
+                v = 0;
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            long m;
+            while (v < (m = min.get()) && !min.compareAndSet(m, v))
+                ;
+            while (v > (m = max.get()) && !max.compareAndSet(m, v))
+                ;
+            buckets.incrementAndGet(bucket(v));
+        }
+
+        static int bucket(long v) {
+            if (v == 0)
+                return 0;
+            return 63 - Long.numberOfLeadingZeros(v);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMin() {
+            return count.get() == 0 ? 0 : min.get();
+        }
+
+        public long getMax() {
+            return count.get() == 0 ? 0 : max.get();
+        }
+
+        public long getMean() {
+            long c = count.get();
+            return c == 0 ? 0 : sum.get() / c;
+        }
+
+        /**
+         * Upper bound of bucket containing given percentile.
+         *
+         * @param p
+         *            percentile 0..1
+         * @return value
+         */
+        public long getPercentile(double p) {
+            long c = count.get();
+            if (c == 0)
+                return 0;
+            long n = (long) Math.ceil(c * p);
+            long s = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                s += buckets.get(i);
+                if (s >= n)
+                    return Math.min(i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, getMax());
+            }
+            return getMax();
+        }
+
+        public long getBucket(int i) {
+            return buckets.get(i);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d, mean %d, min %d, p50 %d, p99 %d, max %d", getCount(), getMean(), getMin(),
+                    getPercentile(0.5), getPercentile(0.99), getMax());
+        }
+    }
+
+    // phase -> nanos
+    protected ConcurrentHashMap<String, Histogram> phases = new ConcurrentHashMap<String, Histogram>();
+    // bytes per second, per stream download call. not kept per stream, service may download unlimited number of
+    // videos, override stream() to track them.
+    protected Histogram speed = new Histogram();
+    // cause -> count
+    protected ConcurrentHashMap<String, AtomicLong> retries = new ConcurrentHashMap<String, AtomicLong>();
+    protected AtomicLong reextract = new AtomicLong();
+
+    @Override
+    public void time(String phase, long nanos) {
+        Histogram h = phases.get(phase);
+        if (h == null) {
+            Histogram n = new Histogram();
+            h = phases.putIfAbsent(phase, n);
+            if (h == null)
+                h = n;
+        }
+        h.add(nanos);
+    }
+
+    @Override
+    public void stream(VideoFileInfo stream, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0)
+            return;
+        long s = bytes * 1000000000L / nanos;
+        speed.add(s);
+    }
+
+    @Override
+    public void retry(String cause) {
+        AtomicLong l = retries.get(cause);
+        if (l == null) {
+            AtomicLong n = new AtomicLong();
+            l = retries.putIfAbsent(cause, n);
+            if (l == null)
+                l = n;
+        }
+        l.incrementAndGet();
+    }
+
+    @Override
+    public void reextract() {
+        reextract.incrementAndGet();
+    }
+
+    /**
+     * Phase histogram.
+     *
+     * @param phase
+     *            phase name (VGetMetrics.PAGE ...)
+     * @return histogram or null if phase never reported
+     */
+    public Histogram getPhase(String phase) {
+        return phases.get(phase);
+    }
+
+    public Map<String, Histogram> getPhases() {
+        return new TreeMap<String, Histogram>(phases);
+    }
+
+    public Histogram getSpeed() {
+        return speed;
+    }
+
+    public Map<String, Long> getRetries() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : retries.entrySet())
+            map.put(e.getKey(), e.getValue().get());
+        return map;
+    }
+
+    public long getReextract() {
+        return reextract.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Histogram> e : getPhases().entrySet())
+            sb.append(e.getKey()).append(" (ns): ").append(e.getValue()).append("\n");
+        sb.append("speed (b/s): ").append(speed).append("\n");
+        sb.append("retries: ").append(getRetries()).append("\n");
+        sb.append("reextract: ").append(getReextract()).append("\n");
+        return sb.toString();
+    }
+}
@@ -1,27 +1,124 @@
 package com.github.axet.vget.info;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.github.axet.vget.VGet;
+import com.github.axet.vget.VGetHttp;
+import com.github.axet.vget.VGetMetrics;
 import com.github.axet.vget.info.VideoInfo.States;
 import com.github.axet.wget.info.DownloadInfo;
 import com.github.axet.wget.info.ex.DownloadInterruptedError;
 
 public abstract class VGetParser {
 
+    // executor for parallel probes. null - use new thread for each probe
+    protected Executor executor;
+    // extraction results cache. null - disabled
+    protected VideoCache cache = VideoCache.getDefault();
+    // pooled http client for pages and streams. null - plain java connections
+    protected VGetHttp http = VGetHttp.getDefault();
+
     public abstract VideoInfo info(URL web);
 
+    /**
+     * Set executor used to probe several streams at once.
+     *
+     * @param executor
+     *            executor or null to start new thread per probe
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set extraction results cache.
+     *
+     * @param cache
+     *            cache or null to always extract from network
+     */
+    public void setCache(VideoCache cache) {
+        this.cache = cache;
+    }
+
+    public VideoCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Set http client used to load web pages, probe and download streams.
+     *
+     * @param http
+     *            pooled client or null to use plain java connections
+     */
+    public void setHttp(VGetHttp http) {
+        this.http = http;
+    }
+
+    public VGetHttp getHttp() {
+        return http;
+    }
+
+    /**
+     * Create download info for web page request.
+     *
+     * @param url
+     *            page url
+     * @return download info, connections go through http client if set
+     */
+    public DownloadInfo page(URL url) {
+        if (http == null)
+            return new DownloadInfo(url);
+        return http.info(url);
+    }
+
+    /**
+     * Cache key for video, same for all parsers of one site.
+     *
+     * @param info
+     *            video info
+     * @return key or null if video can not be cached
+     */
+    public String cacheKey(VideoInfo info) {
+        return null;
+    }
+
+    /**
+     * Drop cached extraction results. Called when stream urls stopped working.
+     *
+     * @param info
+     *            video info
+     */
+    public void invalidate(VideoInfo info) {
+        if (cache == null)
+            return;
+        String key = cacheKey(info);
+        if (key != null)
+            cache.remove(key);
+    }
+
     public void info(VideoInfo info, AtomicBoolean stop, Runnable notify) {
         try {
             List<VideoFileInfo> dinfo = extract(info, stop, notify);
 
             info.setInfo(dinfo);
 
-            for (DownloadInfo i : dinfo) {
+            for (VideoFileInfo i : dinfo) {
                 i.setReferer(info.getWeb());
-                i.extract(stop, notify);
+                i.setHttp(http);
             }
+
+            long start = System.nanoTime();
+            probe(dinfo, stop, notify);
+            VGet.getMetrics().time(VGetMetrics.PROBE, System.nanoTime() - start);
         } catch (DownloadInterruptedError e) {
             info.setState(States.STOP, e);
             notify.run();
@@ -33,6 +130,125 @@ public abstract class VGetParser {
         }
     }
 
+    /**
+     * Extract (HEAD request) all streams at once. Last stream probed on the caller thread, others on executor (or new
+     * threads if executor not set). If one probe fails, other probes interrupted and first error is thrown on the
+     * caller thread. Interrupt sent to the caller thread from outside (Future.cancel(true), queue stop) kept on it.
+     *
+     * @param dinfo
+     *            streams to probe
+     * @param stop
+     *            stop signal boolean
+     * @param notify
+     *            notify executer
+     */
+    public void probe(List<? extends DownloadInfo> dinfo, final AtomicBoolean stop, final Runnable notify) {
+        if (dinfo.size() == 1) {
+            dinfo.get(0).extract(stop, notify);
+            return;
+        }
+
+        final Object lock = new Object();
+        final List<Thread> threads = new ArrayList<Thread>();
+        final Throwable[] errors = new Throwable[dinfo.size()];
+        final CountDownLatch latch = new CountDownLatch(dinfo.size());
+        final boolean[] failed = new boolean[1];
+        // caller thread got interrupt not sent by failed probe
+        final boolean[] external = new boolean[1];
+        final Thread caller = Thread.currentThread();
+
+        for (int i = 0; i < dinfo.size(); i++) {
+            final int index = i;
+            final DownloadInfo d = dinfo.get(i);
+            Runnable r = new Runnable() {
+                @Override
+                public void run() {
+                    Thread t = Thread.currentThread();
+                    try {
+                        synchronized (lock) {
+                            if (failed[0])
+                                throw new DownloadInterruptedError("interrupted");
+                            threads.add(t);
+                        }
+                        d.extract(stop, notify);
+                    } catch (Throwable e) {
+                        synchronized (lock) {
+                            errors[index] = e;
+                            if (t == caller && e instanceof DownloadInterruptedError && !failed[0] && !stop.get())
+                                external[0] = true;
+                            if (!failed[0]) {
+                                failed[0] = true;
+                                for (Thread tt : threads) {
+                                    if (tt != t)
+                                        tt.interrupt();
+                                }
+                            }
+                        }
+                    } finally {
+                        synchronized (lock) {
+                            threads.remove(t);
+                            // failed probe interrupts others, any other interrupt came from outside
+                            if (t == caller && Thread.interrupted() && !failed[0])
+                                external[0] = true;
+                        }
+                        // do not leak interrupted flag to the next executor task
+                        if (t != caller)
+                            Thread.interrupted();
+                        latch.countDown();
+                    }
+                }
+            };
+            if (index == dinfo.size() - 1)
+                r.run();
+            else if (executor != null)
+                executor.execute(r);
+            else
+                new Thread(r, "VGetParser probe").start();
+        }
+
+        boolean interrupted = false;
+        boolean clear = true;
+        while (clear) {
+            try {
+                latch.await();
+                clear = false;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                synchronized (lock) {
+                    failed[0] = true;
+                    for (Thread t : threads)
+                        t.interrupt();
+                }
+            }
+        }
+
+        if (interrupted || external[0]) {
+            Thread.currentThread().interrupt();
+            throw new DownloadInterruptedError("interrupted");
+        }
+
+        // first real error, interrupted probes have DownloadInterruptedError
+        Throwable first = null;
+        for (Throwable e : errors) {
+            if (e == null)
+                continue;
+            if (!(e instanceof DownloadInterruptedError))
+                throw rethrow(e);
+            if (first == null)
+                first = e;
+        }
+        if (first != null)
+            throw rethrow(first);
+    }
+
+    static RuntimeException rethrow(Throwable e) {
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e instanceof RuntimeException)
+            return (RuntimeException) e;
+        return new RuntimeException(e);
+    }
+
     public abstract List<VideoFileInfo> extract(final VideoInfo vinfo, final AtomicBoolean stop, final Runnable notify);
 
 }
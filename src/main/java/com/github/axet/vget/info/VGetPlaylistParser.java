@@ -0,0 +1,80 @@
+package com.github.axet.vget.info;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.axet.vget.VGet;
+import com.github.axet.vget.VGetHttp;
+import com.github.axet.vget.VGetMetrics;
+import com.github.axet.wget.WGet;
+import com.github.axet.wget.info.DownloadInfo;
+
+/**
+ * Playlist / channel parser. Reads list page by page, so long lists never loaded at once.
+ */
+public abstract class VGetPlaylistParser {
+
+    // pooled http client for pages. null - plain java connections
+    protected VGetHttp http = VGetHttp.getDefault();
+
+    /**
+     * Load next page of the list.
+     *
+     * @param stop
+     *            stop signal boolean
+     * @param notify
+     *            notify runnable, called on page retries
+     * @return video urls from the page in list order, null if list ended
+     */
+    public abstract List<URL> next(AtomicBoolean stop, Runnable notify);
+
+    /**
+     * Set http client used to load list pages.
+     *
+     * @param http
+     *            pooled client or null to use plain java connections
+     */
+    public void setHttp(VGetHttp http) {
+        this.http = http;
+    }
+
+    public VGetHttp getHttp() {
+        return http;
+    }
+
+    /**
+     * Create download info for web page request.
+     *
+     * @param url
+     *            page url
+     * @return download info, connections go through http client if set
+     */
+    public DownloadInfo page(URL url) {
+        if (http == null)
+            return new DownloadInfo(url);
+        return http.info(url);
+    }
+
+    protected String html(URL url, AtomicBoolean stop, final Runnable notify) {
+        long start = System.nanoTime();
+        String html = WGet.getHtml(page(url), new WGet.HtmlLoader() {
+            @Override
+            public void notifyRetry(int delay, Throwable e) {
+                notify.run();
+            }
+
+            @Override
+            public void notifyDownloading() {
+                notify.run();
+            }
+
+            @Override
+            public void notifyMoved() {
+                notify.run();
+            }
+        }, stop);
+        VGet.getMetrics().time(VGetMetrics.PAGE, System.nanoTime() - start);
+        return html;
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.axet.vget.info;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extraction results cache. Keeps parsed stream links for recently extracted videos, so same video extracted by
+ * another VGet object (or extracted again after network error) does not download and parse web pages again.
+ *
+ * Entries expire together with stream urls signature. Override get() / put() / remove() to keep entries in external
+ * storage.
+ */
+public class VideoCache {
+    // maximum videos in memory
+    public static int DEFAULT_SIZE = 256;
+    // keep entries with unknown expiration for (ms)
+    public static long DEFAULT_TTL = 5 * 60 * 1000;
+    // drop entries before stream urls expires (ms)
+    public static long MARGIN = 60 * 1000;
+
+    static VideoCache instance = new VideoCache();
+
+    /**
+     * @return process wide cache used by parsers by default
+     */
+    public static VideoCache getDefault() {
+        return instance;
+    }
+
+    public static class Entry {
+        public String title;
+        public URL icon;
+        // html5 player used to decipher links
+        public URI player;
+        // parser specific links list (YouTubeParser.VideoDownload, VimeoParser.VideoDownload)
+        public List<?> links;
+        // unix time (ms)
+        public long expires;
+
+        public Entry(String title, URL icon, List<?> links, long expires) {
+            this.title = title;
+            this.icon = icon;
+            this.links = new ArrayList<Object>(links);
+            this.expires = expires;
+        }
+
+        public boolean expired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+
+    protected int size;
+    protected LinkedHashMap<String, Entry> map;
+
+    public VideoCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     *
+     * @param size
+     *            maximum videos in memory
+     */
+    public VideoCache(int size) {
+        this.size = size;
+        map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VideoCache.Entry> eldest) {
+                return size() > VideoCache.this.size;
+            }
+        };
+    }
+
+    /**
+     * Calculate entry expiration time.
+     *
+     * @param expires
+     *            stream urls expiration (unix ms), 0 if unknown
+     * @return entry expiration time (unix ms)
+     */
+    public static long expires(long expires) {
+        long now = System.currentTimeMillis();
+        if (expires <= 0)
+            return now + DEFAULT_TTL;
+        return expires - MARGIN;
+    }
+
+    /**
+     *
+     * @param key
+     *            parser video key
+     * @return entry or null if not found or expired
+     */
+    synchronized public Entry get(String key) {
+        Entry e = map.get(key);
+        if (e == null)
+            return null;
+        if (e.expired()) {
+            map.remove(key);
+            return null;
+        }
+        return e;
+    }
+
+    synchronized public void put(String key, Entry e) {
+        if (e.expired())
+            return;
+        map.put(key, e);
+    }
+
+    synchronized public void remove(String key) {
+        map.remove(key);
+    }
+
+    /**
+     * Drop expired entries.
+     */
+    synchronized public void clean() {
+        Iterator<Entry> i = map.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().expired())
+                i.remove();
+        }
+    }
+
+    synchronized public void clear() {
+        map.clear();
+    }
+}
@@ -1,14 +1,25 @@
 package com.github.axet.vget.info;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import com.github.axet.vget.VGetHttp;
+import com.github.axet.wget.RetryWrap;
 import com.github.axet.wget.info.DownloadInfo;
 import com.github.axet.wget.info.ProxyInfo;
 
 public class VideoFileInfo extends DownloadInfo {
+    static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
     public File targetFile;
 
+    // pooled http client. null - plain java connections
+    protected transient VGetHttp http;
+
     public VideoFileInfo(URL source) {
         super(source);
     }
@@ -19,7 +30,7 @@ public class VideoFileInfo extends DownloadInfo {
 
     /**
      * set target file download for current DownloadInfo
-     * 
+     *
      * @param file
      */
     public void setTarget(File file) {
@@ -29,4 +40,77 @@ public class VideoFileInfo extends DownloadInfo {
     public File getTarget() {
         return targetFile;
     }
+
+    /**
+     * Set http client used for stream probe and download.
+     *
+     * @param http
+     *            pooled client or null to use plain java connections
+     */
+    public void setHttp(VGetHttp http) {
+        this.http = http;
+    }
+
+    public VGetHttp getHttp() {
+        return http;
+    }
+
+    @Override
+    public HttpURLConnection openConnection() throws IOException {
+        if (http == null)
+            return super.openConnection();
+        return http.open(this, getSource());
+    }
+
+    /**
+     * Same as URLInfo.extractRange(), but probe goes through pool and connection released after headers received.
+     */
+    @Override
+    protected HttpURLConnection extractRange(URL source) throws IOException {
+        if (http == null)
+            return super.extractRange(source);
+
+        HttpURLConnection conn = http.open(this, source);
+        try {
+            conn.setRequestProperty("Range", "bytes=0-0");
+            RetryWrap.check(conn);
+
+            String range = conn.getHeaderField("Content-Range");
+            if (range == null)
+                throw new RuntimeException("range not supported");
+            Matcher m = CONTENT_RANGE.matcher(range);
+            if (!m.find())
+                throw new RuntimeException("range not supported");
+            setLength(Long.valueOf(m.group(1)));
+
+            setRange(true);
+            return conn;
+        } finally {
+            VGetHttp.release(conn);
+        }
+    }
+
+    /**
+     * Same as URLInfo.extractNormal(), but connection closed after headers received.
+     */
+    @Override
+    protected HttpURLConnection extractNormal(URL source) throws IOException {
+        if (http == null)
+            return super.extractNormal(source);
+
+        HttpURLConnection conn = http.open(this, source);
+        try {
+            setRange(false);
+
+            RetryWrap.check(conn);
+
+            int len = conn.getContentLength();
+            if (len >= 0)
+                setLength(Long.valueOf(len));
+
+            return conn;
+        } finally {
+            VGetHttp.release(conn);
+        }
+    }
 }
@@ -3,6 +3,7 @@ package com.github.axet.vget.info;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.axet.wget.info.DownloadInfo;
 
@@ -12,18 +13,44 @@ public class VideoInfo {
         QUEUE, EXTRACTING, EXTRACTING_DONE, DOWNLOADING, RETRYING, DONE, ERROR, STOP
     }
 
+    /**
+     * Immutable video state. Published through one volatile reference, so state, exception and delay always read as
+     * consistent set without locking.
+     */
+    public static class Snapshot {
+        private final States state;
+        private final Throwable exception;
+        private final int delay;
+
+        public Snapshot(States state, Throwable exception, int delay) {
+            this.state = state;
+            this.exception = exception;
+            this.delay = delay;
+        }
+
+        public States getState() {
+            return state;
+        }
+
+        public Throwable getException() {
+            return exception;
+        }
+
+        public int getDelay() {
+            return delay;
+        }
+    }
+
     // user friendly url (not direct video stream url)
-    private URL web;
+    private volatile URL web;
 
-    private URL source;
-    private List<VideoFileInfo> info = new ArrayList<VideoFileInfo>();
-    private String title;
-    private URL icon;
+    private volatile URL source;
+    private volatile List<VideoFileInfo> info = new ArrayList<VideoFileInfo>();
+    private volatile String title;
+    private volatile URL icon;
 
     // states, three variables
-    private States state;
-    private Throwable exception;
-    private int delay;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
 
     /**
      * 
@@ -41,95 +68,103 @@ public class VideoInfo {
      * 
      * @return true - if extract() already been called
      */
-    synchronized public boolean empty() {
+    public boolean empty() {
         return info == null;
     }
 
     /**
-     * reset videoinfo state. make it simialar as after calling constructor
+     * reset videoinfo state. make it simialar as after calling constructor. No lock, fields cleared first and QUEUE
+     * state published last, so reader seeing QUEUE sees cleared fields.
      */
-    synchronized public void reset() {
-        setState(States.QUEUE);
-
+    public void reset() {
         info = null;
         title = null;
         icon = null;
-        exception = null;
-        delay = 0;
+
+        snapshot.set(new Snapshot(States.QUEUE, null, 0));
+    }
+
+    /**
+     * @return current state, exception and delay as one consistent view
+     */
+    public Snapshot snapshot() {
+        return snapshot.get();
     }
 
-    synchronized public String getTitle() {
+    public String getTitle() {
         return title;
     }
 
-    synchronized public void setTitle(String title) {
+    public void setTitle(String title) {
         this.title = title;
     }
 
-    synchronized public List<VideoFileInfo> getInfo() {
+    public List<VideoFileInfo> getInfo() {
         return info;
     }
 
-    synchronized public void setInfo(List<VideoFileInfo> info) {
+    public void setInfo(List<VideoFileInfo> info) {
         this.info = info;
     }
 
-    synchronized public URL getWeb() {
+    public URL getWeb() {
         return web;
     }
 
-    synchronized public void setWeb(URL source) {
+    public void setWeb(URL source) {
         this.web = source;
     }
 
-    synchronized public States getState() {
-        return state;
+    public States getState() {
+        return snapshot.get().state;
     }
 
-    synchronized public void setState(States state) {
-        this.state = state;
-        this.exception = null;
-        this.delay = 0;
+    public void setState(States state) {
+        setState(state, null);
     }
 
-    synchronized public void setState(States state, Throwable e) {
-        this.state = state;
-        this.exception = e;
-        this.delay = 0;
+    public void setState(States state, Throwable e) {
+        Snapshot old = snapshot.get();
+        // download threads set DOWNLOADING on every progress update, skip same state
+        if (old != null && old.state == state && old.exception == e && old.delay == 0)
+            return;
+        snapshot.set(new Snapshot(state, e, 0));
     }
 
-    synchronized public int getDelay() {
-        return delay;
+    public int getDelay() {
+        return snapshot.get().delay;
     }
 
-    synchronized public void setRetrying(int delay, Throwable e) {
-        this.delay = delay;
-        this.exception = e;
-        this.state = States.RETRYING;
+    public void setRetrying(int delay, Throwable e) {
+        snapshot.set(new Snapshot(States.RETRYING, e, delay));
     }
 
-    synchronized public Throwable getException() {
-        return exception;
+    public Throwable getException() {
+        return snapshot.get().exception;
     }
 
-    synchronized public void setException(Throwable exception) {
-        this.exception = exception;
+    public void setException(Throwable exception) {
+        while (true) {
+            Snapshot old = snapshot.get();
+            if (snapshot.compareAndSet(old, new Snapshot(old.state, exception, old.delay)))
+                return;
+        }
     }
 
-    synchronized public URL getIcon() {
+    public URL getIcon() {
         return icon;
     }
 
-    synchronized public void setIcon(URL icon) {
+    public void setIcon(URL icon) {
         this.icon = icon;
     }
 
-    synchronized public URL getSource() {
+    public URL getSource() {
         return source;
     }
 
-    synchronized public void setSource(URL source) {
+    public void setSource(URL source) {
         this.source = source;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,653 @@
+package com.github.axet.vget.mux;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.axet.wget.info.ex.DownloadInterruptedError;
+
+/**
+ * Fragmented MP4 remuxer. Joins single track fragmented MP4 files (YouTube DASH video and audio streams) into one file
+ * without decoding. Movie headers merged, track ids renumbered, fragments interleaved by decode time. Media data copied
+ * once using FileChannel.transferTo().
+ *
+ * Segment indexes (sidx) and random access boxes (mfra) are dropped, since they point to old file offsets.
+ */
+public class Mp4Mux {
+    static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+    public static class MuxError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public MuxError(String msg) {
+            super(msg);
+        }
+    }
+
+    // box header
+    static class Box {
+        long offset;
+        long size;
+        int header;
+        String type;
+
+        long end() {
+            return offset + size;
+        }
+    }
+
+    /**
+     * One source file with one track.
+     */
+    static class Input {
+        File file;
+        RandomAccessFile raf;
+        FileChannel ch;
+        long pos;
+
+        byte[] ftyp;
+        byte[] moov;
+        // moov children
+        byte[] mvhd;
+        byte[] trak;
+        byte[] trex;
+        byte[] mehd;
+
+        int id;
+        long timescale;
+        long movieTimescale;
+        // default sample duration from trex
+        long defaultDuration;
+
+        // current fragment
+        byte[] moof;
+        long moofOffset;
+        List<Box> mdat = new ArrayList<Box>();
+        long time;
+        // decode time for fragments without tfdt
+        long elapsed;
+
+        Input(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "r");
+            ch = raf.getChannel();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        /**
+         * Read file header (all boxes before first fragment).
+         */
+        void header() throws IOException {
+            Box b;
+            while ((b = box(ch, pos)) != null) {
+                if (b.type.equals("moof"))
+                    break;
+                if (b.type.equals("ftyp"))
+                    ftyp = read(ch, b.offset, (int) b.size);
+                if (b.type.equals("moov"))
+                    moov = read(ch, b.offset, (int) b.size);
+                pos = b.end();
+            }
+            if (moov == null)
+                throw new MuxError("moov not found: " + file);
+
+            List<int[]> traks = new ArrayList<int[]>();
+            for (int[] c : children(moov, 8, moov.length)) {
+                String t = type(moov, c[0]);
+                if (t.equals("mvhd"))
+                    mvhd = copy(moov, c);
+                if (t.equals("trak"))
+                    traks.add(c);
+                if (t.equals("mvex")) {
+                    for (int[] cc : children(moov, c[0] + 8, c[0] + c[1])) {
+                        String tt = type(moov, cc[0]);
+                        if (tt.equals("trex"))
+                            trex = copy(moov, cc);
+                        if (tt.equals("mehd"))
+                            mehd = copy(moov, cc);
+                    }
+                }
+            }
+            if (mvhd == null)
+                throw new MuxError("mvhd not found: " + file);
+            if (traks.size() != 1)
+                throw new MuxError("only single track files supported: " + file);
+            if (trex == null)
+                throw new MuxError("not fragmented mp4: " + file);
+            trak = copy(moov, traks.get(0));
+
+            movieTimescale = u32(mvhd, 8 + 4 + (version(mvhd) == 1 ? 16 : 8));
+
+            int tkhd = find(trak, 8, trak.length, "tkhd");
+            if (tkhd < 0)
+                throw new MuxError("tkhd not found: " + file);
+            id = (int) u32(trak, tkhd + 12 + (version(trak, tkhd) == 1 ? 16 : 8));
+
+            int mdia = find(trak, 8, trak.length, "mdia");
+            int mdhd = mdia < 0 ? -1 : find(trak, mdia + 8, mdia + (int) u32(trak, mdia), "mdhd");
+            if (mdhd < 0)
+                throw new MuxError("mdhd not found: " + file);
+            timescale = u32(trak, mdhd + 12 + (version(trak, mdhd) == 1 ? 16 : 8));
+
+            // trex: track_ID, default_sample_description_index, default_sample_duration
+            defaultDuration = u32(trex, 12 + 8);
+        }
+
+        /**
+         * Read next fragment: moof and following mdat boxes.
+         *
+         * @return false if no more fragments
+         */
+        boolean next() throws IOException {
+            moof = null;
+            mdat.clear();
+            Box b;
+            while ((b = box(ch, pos)) != null) {
+                if (b.type.equals("moof")) {
+                    if (moof != null)
+                        break;
+                    moofOffset = b.offset;
+                    moof = read(ch, b.offset, (int) b.size);
+                } else if (b.type.equals("mdat")) {
+                    if (moof != null)
+                        mdat.add(b);
+                } else if (moof != null) {
+                    pos = b.end();
+                    break;
+                }
+                pos = b.end();
+            }
+            if (moof == null)
+                return false;
+
+            int traf = find(moof, 8, moof.length, "traf");
+            if (traf < 0)
+                throw new MuxError("traf not found: " + file);
+            int end = traf + (int) u32(moof, traf);
+            int tfdt = find(moof, traf + 8, end, "tfdt");
+            if (tfdt >= 0) {
+                time = version(moof, tfdt) == 1 ? u64(moof, tfdt + 12) : u32(moof, tfdt + 12);
+                elapsed = time;
+            } else {
+                time = elapsed;
+            }
+            elapsed += duration(traf, end);
+            return true;
+        }
+
+        // total samples duration of track fragment
+        long duration(int traf, int end) {
+            int tfhd = find(moof, traf + 8, end, "tfhd");
+            long def = defaultDuration;
+            if (tfhd >= 0) {
+                int flags = flags(moof, tfhd);
+                int p = tfhd + 16;
+                if ((flags & 0x1) != 0)
+                    p += 8;
+                if ((flags & 0x2) != 0)
+                    p += 4;
+                if ((flags & 0x8) != 0)
+                    def = u32(moof, p);
+            }
+            long d = 0;
+            for (int[] c : children(moof, traf + 8, end)) {
+                if (!type(moof, c[0]).equals("trun"))
+                    continue;
+                int flags = flags(moof, c[0]);
+                long count = u32(moof, c[0] + 12);
+                int p = c[0] + 16;
+                if ((flags & 0x1) != 0)
+                    p += 4;
+                if ((flags & 0x4) != 0)
+                    p += 4;
+                if ((flags & 0x100) == 0) {
+                    d += count * def;
+                    continue;
+                }
+                int step = 4;
+                if ((flags & 0x200) != 0)
+                    step += 4;
+                if ((flags & 0x400) != 0)
+                    step += 4;
+                if ((flags & 0x800) != 0)
+                    step += 4;
+                for (long i = 0; i < count; i++, p += step)
+                    d += u32(moof, p);
+            }
+            return d;
+        }
+
+        // compare fragments decode time in seconds
+        boolean before(Input o) {
+            return time * (double) o.timescale < o.time * (double) timescale;
+        }
+    }
+
+    List<Input> inputs = new ArrayList<Input>();
+
+    public Mp4Mux(List<File> files) {
+        for (File f : files) {
+            try {
+                inputs.add(new Input(f));
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Check if file is fragmented MP4 file with single track, which can be muxed.
+     *
+     * @param f
+     *            file to check
+     * @return true if supported
+     */
+    public static boolean probe(File f) {
+        Input i = null;
+        try {
+            i = new Input(f);
+            Box b = box(i.ch, 0);
+            if (b == null || !b.type.equals("ftyp"))
+                return false;
+            i.header();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (MuxError e) {
+            return false;
+        } finally {
+            if (i != null)
+                i.close();
+        }
+    }
+
+    /**
+     * Mux all inputs into target file.
+     *
+     * @param target
+     *            output file, overwritten
+     * @param stop
+     *            stop signal boolean
+     */
+    public void mux(File target, AtomicBoolean stop) {
+        RandomAccessFile out = null;
+        try {
+            for (Input i : inputs)
+                i.header();
+
+            out = new RandomAccessFile(target, "rw");
+            out.setLength(0);
+            FileChannel ch = out.getChannel();
+
+            Input first = inputs.get(0);
+            if (first.ftyp != null)
+                write(ch, first.ftyp);
+            write(ch, moov());
+
+            List<Input> active = new ArrayList<Input>();
+            for (Input i : inputs) {
+                if (i.next())
+                    active.add(i);
+            }
+
+            long seq = 0;
+            while (!active.isEmpty()) {
+                if (stop.get())
+                    throw new DownloadInterruptedError("stop");
+                if (Thread.currentThread().isInterrupted())
+                    throw new DownloadInterruptedError("interrupted");
+
+                Input i = active.get(0);
+                for (Input ii : active) {
+                    if (ii.before(i))
+                        i = ii;
+                }
+
+                long moofOffset = ch.position();
+                write(ch, moof(i, ++seq, moofOffset));
+                for (Box b : i.mdat)
+                    transfer(i.ch, b.offset, b.size, ch);
+
+                if (!i.next())
+                    active.remove(i);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            close();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public void close() {
+        for (Input i : inputs)
+            i.close();
+    }
+
+    /**
+     * Build merged movie box.
+     */
+    byte[] moov() {
+        Input first = inputs.get(0);
+        long ts = first.movieTimescale;
+
+        byte[] mvhd = first.mvhd.clone();
+        long duration = 0;
+        long fragments = 0;
+        for (Input i : inputs) {
+            duration = Math.max(duration, scale(movieDuration(i.mvhd), i.movieTimescale, ts));
+            if (i.mehd != null) {
+                long d = version(i.mehd) == 1 ? u64(i.mehd, 12) : u32(i.mehd, 12);
+                fragments = Math.max(fragments, scale(d, i.movieTimescale, ts));
+            }
+        }
+        int mv = version(mvhd);
+        if (mv == 1)
+            put64(mvhd, 8 + 4 + 16 + 4, duration);
+        else
+            put32(mvhd, 8 + 4 + 8 + 4, duration);
+        // next_track_ID, last field
+        put32(mvhd, mvhd.length - 4, inputs.size() + 1);
+
+        ByteArray moov = new ByteArray();
+        moov.box("moov");
+        moov.write(mvhd);
+
+        for (int n = 0; n < inputs.size(); n++) {
+            Input i = inputs.get(n);
+            byte[] trak = i.trak.clone();
+            int tkhd = find(trak, 8, trak.length, "tkhd");
+            int v = version(trak, tkhd);
+            int p = tkhd + 12 + (v == 1 ? 16 : 8);
+            put32(trak, p, n + 1);
+            // duration in movie timescale
+            p += 8;
+            if (v == 1)
+                put64(trak, p, scale(u64(trak, p), i.movieTimescale, ts));
+            else
+                put32(trak, p, scale(u32(trak, p), i.movieTimescale, ts));
+            // edit list durations in movie timescale
+            int edts = find(trak, 8, trak.length, "edts");
+            if (edts >= 0) {
+                int elst = find(trak, edts + 8, edts + (int) u32(trak, edts), "elst");
+                if (elst >= 0) {
+                    int ev = version(trak, elst);
+                    long count = u32(trak, elst + 12);
+                    int e = elst + 16;
+                    for (long k = 0; k < count; k++) {
+                        if (ev == 1) {
+                            put64(trak, e, scale(u64(trak, e), i.movieTimescale, ts));
+                            e += 20;
+                        } else {
+                            put32(trak, e, scale(u32(trak, e), i.movieTimescale, ts));
+                            e += 12;
+                        }
+                    }
+                }
+            }
+            moov.write(trak);
+        }
+
+        moov.box("mvex");
+        if (fragments > 0) {
+            moov.box("mehd");
+            moov.u32(0x01000000); // version 1, flags 0
+            moov.u64(fragments);
+            moov.end();
+        }
+        for (int n = 0; n < inputs.size(); n++) {
+            byte[] trex = inputs.get(n).trex.clone();
+            put32(trex, 12, n + 1);
+            moov.write(trex);
+        }
+        moov.end();
+
+        moov.end();
+        return moov.toByteArray();
+    }
+
+    /**
+     * Patch fragment: new sequence number, new track id, new base data offset.
+     */
+    byte[] moof(Input i, long seq, long offset) {
+        byte[] moof = i.moof.clone();
+        int id = inputs.indexOf(i) + 1;
+        int mfhd = find(moof, 8, moof.length, "mfhd");
+        if (mfhd >= 0)
+            put32(moof, mfhd + 12, seq);
+        for (int[] c : children(moof, 8, moof.length)) {
+            if (!type(moof, c[0]).equals("traf"))
+                continue;
+            int tfhd = find(moof, c[0] + 8, c[0] + c[1], "tfhd");
+            if (tfhd < 0)
+                continue;
+            put32(moof, tfhd + 12, id);
+            if ((flags(moof, tfhd) & 0x1) != 0) {
+                long base = u64(moof, tfhd + 16);
+                put64(moof, tfhd + 16, offset + (base - i.moofOffset));
+            }
+        }
+        return moof;
+    }
+
+    static long movieDuration(byte[] mvhd) {
+        if (version(mvhd) == 1)
+            return u64(mvhd, 8 + 4 + 16 + 4);
+        return u32(mvhd, 8 + 4 + 8 + 4);
+    }
+
+    static long scale(long v, long from, long to) {
+        if (from == to || from == 0)
+            return v;
+        return (long) (v * (double) to / from);
+    }
+
+    /**
+     * Read box header.
+     *
+     * @return box or null if end of file
+     */
+    static Box box(FileChannel ch, long pos) throws IOException {
+        long length = ch.size();
+        if (pos + 8 > length)
+            return null;
+        ByteBuffer bb = ByteBuffer.allocate(16);
+        bb.limit(8);
+        read(ch, pos, bb);
+        Box b = new Box();
+        b.offset = pos;
+        b.size = bb.getInt(0) & 0xffffffffL;
+        b.type = new String(bb.array(), 4, 4, ASCII);
+        b.header = 8;
+        if (b.size == 1) {
+            bb.clear();
+            bb.limit(8);
+            read(ch, pos + 8, bb);
+            b.size = bb.getLong(0);
+            b.header = 16;
+        } else if (b.size == 0) {
+            b.size = length - pos;
+        }
+        if (b.size < b.header)
+            throw new MuxError("bad box size " + b.type + " at " + pos);
+        if (b.end() > length)
+            throw new MuxError("truncated box " + b.type + " at " + pos);
+        return b;
+    }
+
+    static void read(FileChannel ch, long pos, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            int r = ch.read(bb, pos + bb.position());
+            if (r < 0)
+                throw new IOException("unexpected end of file");
+        }
+    }
+
+    static byte[] read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(len);
+        read(ch, pos, bb);
+        return bb.array();
+    }
+
+    static void write(FileChannel ch, byte[] buf) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining())
+            ch.write(bb);
+    }
+
+    static void transfer(FileChannel in, long pos, long size, FileChannel out) throws IOException {
+        long end = pos + size;
+        while (pos < end) {
+            long n = in.transferTo(pos, end - pos, out);
+            if (n <= 0)
+                throw new IOException("unable to copy media data");
+            pos += n;
+        }
+    }
+
+    // in memory boxes
+
+    static String type(byte[] b, int p) {
+        return new String(b, p + 4, 4, ASCII);
+    }
+
+    static int version(byte[] b) {
+        return version(b, 0);
+    }
+
+    static int version(byte[] b, int p) {
+        return b[p + 8] & 0xff;
+    }
+
+    static int flags(byte[] b, int p) {
+        return (int) (u32(b, p + 8) & 0xffffff);
+    }
+
+    /**
+     * List child boxes.
+     *
+     * @return list of {offset, size}
+     */
+    static List<int[]> children(byte[] b, int start, int end) {
+        List<int[]> list = new ArrayList<int[]>();
+        int p = start;
+        while (p + 8 <= end) {
+            long size = u32(b, p);
+            if (size == 0)
+                size = end - p;
+            if (size < 8 || p + size > end)
+                throw new MuxError("bad box " + type(b, p));
+            list.add(new int[] { p, (int) size });
+            p += size;
+        }
+        return list;
+    }
+
+    static int find(byte[] b, int start, int end, String type) {
+        for (int[] c : children(b, start, end)) {
+            if (type(b, c[0]).equals(type))
+                return c[0];
+        }
+        return -1;
+    }
+
+    static byte[] copy(byte[] b, int[] c) {
+        byte[] r = new byte[c[1]];
+        System.arraycopy(b, c[0], r, 0, c[1]);
+        return r;
+    }
+
+    static long u32(byte[] b, int p) {
+        return ((b[p] & 0xffL) << 24) | ((b[p + 1] & 0xffL) << 16) | ((b[p + 2] & 0xffL) << 8) | (b[p + 3] & 0xffL);
+    }
+
+    static long u64(byte[] b, int p) {
+        return (u32(b, p) << 32) | u32(b, p + 4);
+    }
+
+    static void put32(byte[] b, int p, long v) {
+        b[p] = (byte) (v >>> 24);
+        b[p + 1] = (byte) (v >>> 16);
+        b[p + 2] = (byte) (v >>> 8);
+        b[p + 3] = (byte) v;
+    }
+
+    static void put64(byte[] b, int p, long v) {
+        put32(b, p, v >>> 32);
+        put32(b, p + 4, v);
+    }
+
+    /**
+     * Box writer with nested boxes.
+     */
+    static class ByteArray {
+        byte[] buf = new byte[1024];
+        int size;
+        List<Integer> open = new ArrayList<Integer>();
+
+        void ensure(int n) {
+            if (size + n > buf.length) {
+                byte[] b = new byte[Math.max(buf.length * 2, size + n)];
+                System.arraycopy(buf, 0, b, 0, size);
+                buf = b;
+            }
+        }
+
+        void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, size, b.length);
+            size += b.length;
+        }
+
+        void u32(long v) {
+            ensure(4);
+            put32(buf, size, v);
+            size += 4;
+        }
+
+        void u64(long v) {
+            ensure(8);
+            put64(buf, size, v);
+            size += 8;
+        }
+
+        void box(String type) {
+            open.add(size);
+            u32(0);
+            ensure(4);
+            for (int i = 0; i < 4; i++)
+                buf[size++] = (byte) type.charAt(i);
+        }
+
+        void end() {
+            int p = open.remove(open.size() - 1);
+            put32(buf, p, size - p);
+        }
+
+        byte[] toByteArray() {
+            byte[] b = new byte[size];
+            System.arraycopy(buf, 0, b, 0, size);
+            return b;
+        }
+    }
+}
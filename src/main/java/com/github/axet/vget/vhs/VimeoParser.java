@@ -14,7 +14,10 @@ import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 
+import com.github.axet.vget.VGet;
+import com.github.axet.vget.VGetMetrics;
 import com.github.axet.vget.info.VGetParser;
+import com.github.axet.vget.info.VideoCache;
 import com.github.axet.vget.info.VideoFileInfo;
 import com.github.axet.vget.info.VideoInfo;
 import com.github.axet.vget.info.VideoInfo.States;
@@ -86,6 +89,11 @@ public class VimeoParser extends VGetParser {
         public int bitrate;
     }
 
+    // precompiled patterns, shared between all parsers and threads
+    static final Pattern ID_URL = Pattern.compile("vimeo.com.*/(\\d+)");
+    static final Pattern ID_CLIP = Pattern.compile("vimeo.com.*=(\\d+)");
+    static final Pattern CONFIG_URL = Pattern.compile("data-config-url=\"([^\"]+)\"");
+
     public VimeoParser() {
     }
 
@@ -97,8 +105,7 @@ public class VimeoParser extends VGetParser {
         // standard web url. format: "https://vimeo.com/49243107" or
         // "http://vimeo.com/channels/staffpicks/49243107"
         {
-            Pattern u = Pattern.compile("vimeo.com.*/(\\d+)");
-            Matcher um = u.matcher(url.toString());
+            Matcher um = ID_URL.matcher(url.toString());
 
             if (um.find())
                 return um.group(1);
@@ -106,8 +113,7 @@ public class VimeoParser extends VGetParser {
         // rss feed url. format:
         // "http://vimeo.com/moogaloop.swf?clip_id=49243107"
         {
-            Pattern u = Pattern.compile("vimeo.com.*=(\\d+)");
-            Matcher um = u.matcher(url.toString());
+            Matcher um = ID_CLIP.matcher(url.toString());
 
             if (um.find())
                 return um.group(1);
@@ -115,7 +121,43 @@ public class VimeoParser extends VGetParser {
         return null;
     }
 
+    @Override
+    public String cacheKey(VideoInfo info) {
+        String id = extractId(info.getWeb());
+        if (id == null)
+            return null;
+        return "vimeo:" + id;
+    }
+
+    @SuppressWarnings("unchecked")
     public List<VideoDownload> extractLinks(final VideoInfo info, final AtomicBoolean stop, final Runnable notify) {
+        VideoCache cache = this.cache;
+        String key = cache == null ? null : cacheKey(info);
+        if (key != null) {
+            VideoCache.Entry e = cache.get(key);
+            if (e != null) {
+                info.setTitle(e.title);
+                info.setIcon(e.icon);
+                return new ArrayList<VideoDownload>((List<VideoDownload>) e.links);
+            }
+        }
+
+        long[] expires = new long[1];
+        List<VideoDownload> list = extractLinks(info, stop, notify, expires);
+
+        if (key != null && !list.isEmpty())
+            cache.put(key, new VideoCache.Entry(info.getTitle(), info.getIcon(), list, VideoCache.expires(expires[0])));
+
+        return list;
+    }
+
+    /**
+     * 
+     * @param expires
+     *            out: stream urls expiration time (unix ms), 0 if unknown
+     */
+    List<VideoDownload> extractLinks(final VideoInfo info, final AtomicBoolean stop, final Runnable notify,
+            long[] expires) {
         List<VideoDownload> list = new ArrayList<VideoDownload>();
 
         try {
@@ -131,7 +173,9 @@ public class VimeoParser extends VGetParser {
 
             URL url = new URL(clip);
 
-            String html = WGet.getHtml(url, new HtmlLoader() {
+            VGetMetrics m = VGet.getMetrics();
+            long start = System.nanoTime();
+            String html = WGet.getHtml(page(url), new HtmlLoader() {
                 @Override
                 public void notifyRetry(int delay, Throwable e) {
                     info.setRetrying(delay, e);
@@ -150,11 +194,11 @@ public class VimeoParser extends VGetParser {
                     notify.run();
                 }
             }, stop);
+            m.time(VGetMetrics.PAGE, System.nanoTime() - start);
 
             String config;
             {
-                Pattern u = Pattern.compile("data-config-url=\"([^\"]+)\"");
-                Matcher um = u.matcher(html);
+                Matcher um = CONFIG_URL.matcher(html);
                 if (!um.find()) {
                     throw new DownloadError("unknown config vimeo respond");
                 }
@@ -163,7 +207,8 @@ public class VimeoParser extends VGetParser {
 
             config = StringEscapeUtils.unescapeHtml4(config);
 
-            String htmlConfig = WGet.getHtml(new URL(config), new HtmlLoader() {
+            start = System.nanoTime();
+            String htmlConfig = WGet.getHtml(page(new URL(config)), new HtmlLoader() {
                 @Override
                 public void notifyRetry(int delay, Throwable e) {
                     info.setRetrying(delay, e);
@@ -182,9 +227,21 @@ public class VimeoParser extends VGetParser {
                     notify.run();
                 }
             }, stop);
+            long now = System.nanoTime();
+            m.time(VGetMetrics.PAGE, now - start);
+            start = now;
 
             VimeoData data = new Gson().fromJson(htmlConfig, VimeoData.class);
 
+            if (data.request.expires > 0) {
+                if (data.request.expires > 1000000000L) // absolute unix time
+                    expires[0] = data.request.expires * 1000;
+                else if (data.request.timestamp > 0) // seconds since request
+                    expires[0] = (data.request.timestamp + data.request.expires) * 1000;
+                else
+                    expires[0] = System.currentTimeMillis() + data.request.expires * 1000;
+            }
+
             String icon = data.video.thumbs.values().iterator().next();
 
             info.setTitle(data.video.title);
@@ -196,6 +253,7 @@ public class VimeoParser extends VGetParser {
                 list.add(new VideoDownload(VimeoQuality.pLow, new URL(data.request.files.h264.sd.url)));
 
             info.setIcon(new URL(icon));
+            m.time(VGetMetrics.PARSE, System.nanoTime() - start);
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,69 @@
+package com.github.axet.vget.vhs;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.github.axet.vget.info.VGetPlaylistParser;
+
+/**
+ * Vimeo channel, album, showcase or user videos. Pages followed by rel="next" links.
+ *
+ * "https://vimeo.com/channels/staffpicks", "https://vimeo.com/showcase/1234", "https://vimeo.com/user/videos"
+ */
+public class VimeoPlaylistParser extends VGetPlaylistParser {
+
+    // precompiled patterns, shared between all parsers and threads
+    static final Pattern LIST = Pattern
+            .compile("vimeo.com/(?:(?:channels|album|showcase)/[^/?#]+|[^/?#]+/videos)(?:/page:\\d+)?/?(?:[?#].*)?$");
+    static final Pattern CLIP_ID = Pattern.compile("(?:href=\"(?:https?://vimeo\\.com)?/|data-clip-id=\")(\\d+)\"");
+    static final Pattern NEXT = Pattern.compile("rel=\"next\" href=\"([^\"]+)\"");
+
+    public static final String BASE = "https://vimeo.com";
+
+    // next page url, null if list ended
+    protected URL next;
+
+    public VimeoPlaylistParser(URL web) {
+        next = web;
+    }
+
+    public static boolean probe(URL url) {
+        return LIST.matcher(url.toString()).find();
+    }
+
+    @Override
+    public List<URL> next(AtomicBoolean stop, Runnable notify) {
+        if (next == null)
+            return null;
+        try {
+            URL url = next;
+            String html = html(url, stop, notify);
+
+            Set<String> ids = new LinkedHashSet<String>();
+            Matcher m = CLIP_ID.matcher(html);
+            while (m.find())
+                ids.add(m.group(1));
+
+            next = null;
+            Matcher n = NEXT.matcher(html);
+            if (n.find() && !ids.isEmpty())
+                next = new URL(url, StringEscapeUtils.unescapeHtml4(n.group(1)));
+
+            List<URL> list = new ArrayList<URL>();
+            for (String id : ids)
+                list.add(new URL(BASE + "/" + id));
+            return list;
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.github.axet.vget.vhs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.axet.wget.info.ex.DownloadError;
+
+/**
+ * YouTube signature decipher program. Short list of operations on signature chars, parsed once from html5 player decode
+ * functions (or from legacy slice tables) and executed in plain java, no script engine required.
+ *
+ * Program text form (used for caching): space separated operations
+ *
+ * "r" - reverse, "s3" - splice(0, 3), "w5" - swap first char with char 5 % length, "p2:10:-1" - append python style
+ * slice [2:10:-1] of the original signature, "p7" - single char, "p60:" - tail.
+ */
+public class YouTubeDecipher {
+
+    public static final int REVERSE = 0;
+    public static final int SPLICE = 1;
+    public static final int SWAP = 2;
+    public static final int PICK = 3;
+
+    // slice end, up to the signature end
+    static final int END = Integer.MIN_VALUE;
+
+    static final Pattern STATEMENT_CALL = Pattern
+            .compile("^(?:[a-zA-Z0-9$]+=)?([a-zA-Z0-9$]+)(?:\\.([a-zA-Z0-9$]+)|\\[\"([a-zA-Z0-9$]+)\"\\])\\([a-zA-Z0-9$]+,(\\d+)\\)$");
+    static final Pattern STATEMENT_REVERSE = Pattern.compile("^(?:[a-zA-Z0-9$]+=)?[a-zA-Z0-9$]+\\.reverse\\(\\)$");
+    static final Pattern STATEMENT_SLICE = Pattern
+            .compile("^(?:[a-zA-Z0-9$]+=)?[a-zA-Z0-9$]+\\.(?:slice|splice)\\((?:0,)?(\\d+)\\)$");
+    static final Pattern STATEMENT_SKIP = Pattern
+            .compile("^(?:[a-zA-Z0-9$]+=[a-zA-Z0-9$]+\\.split\\(\"\"\\)|return [a-zA-Z0-9$]+\\.join\\(\"\"\\))$");
+    static final Pattern FUNCTION_BODY = Pattern.compile("=function\\([a-zA-Z0-9$]+\\)\\{(.*?)\\}");
+    static final Pattern HELPER = Pattern.compile("\"?([a-zA-Z0-9$]+)\"?:function\\([^)]*\\)\\{([^}]*)\\}");
+
+    // op codes with arguments, see opSize()
+    int[] code;
+
+    YouTubeDecipher(int[] code) {
+        this.code = code;
+    }
+
+    /**
+     * Build program from extracted player decode functions.
+     *
+     * @param decodeScript
+     *            main decode function followed by helper object
+     * @param functionName
+     *            main decode function name
+     * @return new program
+     */
+    public static YouTubeDecipher compile(String decodeScript, String functionName) {
+        int start = decodeScript.indexOf(functionName + "=function(");
+        if (start < 0)
+            throw new DownloadError("Unable to find the main decode function!");
+        Matcher body = FUNCTION_BODY.matcher(decodeScript);
+        if (!body.find(start + functionName.length()))
+            throw new DownloadError("Unable to extract the main decode function!");
+
+        Map<String, Integer> helpers = new HashMap<String, Integer>();
+        Matcher h = HELPER.matcher(decodeScript);
+        while (h.find()) {
+            String f = h.group(2);
+            if (f.contains("reverse"))
+                helpers.put(h.group(1), REVERSE);
+            else if (f.contains("splice") || f.contains("slice"))
+                helpers.put(h.group(1), SPLICE);
+            else if (f.contains("[0]"))
+                helpers.put(h.group(1), SWAP);
+        }
+
+        Builder b = new Builder();
+        for (String s : body.group(1).split(";")) {
+            s = s.trim();
+            if (s.length() == 0 || STATEMENT_SKIP.matcher(s).matches())
+                continue;
+            Matcher m = STATEMENT_CALL.matcher(s);
+            if (m.matches()) {
+                String name = m.group(2) != null ? m.group(2) : m.group(3);
+                Integer op = helpers.get(name);
+                if (op == null)
+                    throw new DownloadError("Unknown decode helper function: " + name);
+                int arg = Integer.parseInt(m.group(4));
+                switch (op) {
+                case REVERSE:
+                    b.reverse();
+                    break;
+                case SPLICE:
+                    b.splice(arg);
+                    break;
+                default:
+                    b.swap(arg);
+                    break;
+                }
+                continue;
+            }
+            if (STATEMENT_REVERSE.matcher(s).matches()) {
+                b.reverse();
+                continue;
+            }
+            m = STATEMENT_SLICE.matcher(s);
+            if (m.matches()) {
+                b.splice(Integer.parseInt(m.group(1)));
+                continue;
+            }
+            throw new DownloadError("Unknown decode statement: " + s);
+        }
+        return b.build();
+    }
+
+    /**
+     * Parse program from its text form.
+     *
+     * @param text
+     *            program text, see toString()
+     * @return new program
+     */
+    public static YouTubeDecipher parse(String text) {
+        Builder b = new Builder();
+        for (String s : text.trim().split(" +")) {
+            if (s.length() == 0)
+                continue;
+            try {
+                switch (s.charAt(0)) {
+                case 'r':
+                    b.reverse();
+                    break;
+                case 's':
+                    b.splice(Integer.parseInt(s.substring(1)));
+                    break;
+                case 'w':
+                    b.swap(Integer.parseInt(s.substring(1)));
+                    break;
+                case 'p':
+                    String[] ss = s.substring(1).split(":", -1);
+                    int begin = Integer.parseInt(ss[0]);
+                    if (ss.length == 1) {
+                        b.pick(begin, begin + 1, 1);
+                    } else {
+                        int end = ss[1].length() == 0 ? END : Integer.parseInt(ss[1]);
+                        int step = ss.length > 2 ? Integer.parseInt(ss[2]) : 1;
+                        b.pick(begin, end, step);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+                }
+            } catch (RuntimeException e) {
+                throw new DownloadError("Bad decipher program: " + text);
+            }
+        }
+        return b.build();
+    }
+
+    static int opSize(int op) {
+        switch (op) {
+        case REVERSE:
+            return 1;
+        case PICK:
+            return 4;
+        default:
+            return 2;
+        }
+    }
+
+    /**
+     * Decipher signature.
+     *
+     * @param sig
+     *            ciphered signature
+     * @return deciphered signature
+     */
+    public String decode(String sig) {
+        char[] a = sig.toCharArray();
+        int off = 0;
+        int len = a.length;
+        StringBuilder out = null;
+
+        for (int i = 0; i < code.length; i += opSize(code[i])) {
+            switch (code[i]) {
+            case REVERSE:
+                for (int l = off, r = off + len - 1; l < r; l++, r--) {
+                    char c = a[l];
+                    a[l] = a[r];
+                    a[r] = c;
+                }
+                break;
+            case SPLICE:
+                int n = Math.min(code[i + 1], len);
+                off += n;
+                len -= n;
+                break;
+            case SWAP:
+                if (len > 0) {
+                    int p = off + code[i + 1] % len;
+                    char c = a[off];
+                    a[off] = a[p];
+                    a[p] = c;
+                }
+                break;
+            case PICK:
+                if (out == null)
+                    out = new StringBuilder(sig.length());
+                int step = code[i + 3];
+                int end = code[i + 2] == END ? (step > 0 ? sig.length() : -1) : code[i + 2];
+                int b = code[i + 1];
+                if (step > 0) {
+                    for (; b < end && b < sig.length(); b += step)
+                        out.append(sig.charAt(b));
+                } else {
+                    for (; b > end && b >= 0; b += step) {
+                        if (b < sig.length())
+                            out.append(sig.charAt(b));
+                    }
+                }
+                break;
+            }
+        }
+
+        if (out != null)
+            return out.toString();
+        return new String(a, off, len);
+    }
+
+    /**
+     * @return program text form, can be parsed back with parse()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < code.length; i += opSize(code[i])) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            switch (code[i]) {
+            case REVERSE:
+                sb.append('r');
+                break;
+            case SPLICE:
+                sb.append('s').append(code[i + 1]);
+                break;
+            case SWAP:
+                sb.append('w').append(code[i + 1]);
+                break;
+            case PICK:
+                sb.append('p').append(code[i + 1]).append(':');
+                if (code[i + 2] != END)
+                    sb.append(code[i + 2]);
+                sb.append(':').append(code[i + 3]);
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    static class Builder {
+        int[] code = new int[16];
+        int size = 0;
+
+        void add(int v) {
+            if (size == code.length) {
+                int[] c = new int[code.length * 2];
+                System.arraycopy(code, 0, c, 0, size);
+                code = c;
+            }
+            code[size++] = v;
+        }
+
+        void reverse() {
+            add(REVERSE);
+        }
+
+        void splice(int n) {
+            add(SPLICE);
+            add(n);
+        }
+
+        void swap(int n) {
+            add(SWAP);
+            add(n);
+        }
+
+        void pick(int begin, int end, int step) {
+            if (step == 0)
+                throw new IllegalArgumentException("step");
+            add(PICK);
+            add(begin);
+            add(end);
+            add(step);
+        }
+
+        YouTubeDecipher build() {
+            int[] c = new int[size];
+            System.arraycopy(code, 0, c, 0, size);
+            return new YouTubeDecipher(c);
+        }
+    }
+}
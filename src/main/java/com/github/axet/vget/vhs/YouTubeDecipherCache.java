@@ -0,0 +1,193 @@
+package com.github.axet.vget.vhs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import com.github.axet.wget.info.ex.DownloadError;
+
+/**
+ * Decipher programs cache keyed by html5 player url. Keeps only small derived programs (not player scripts) and evicts
+ * least recently used players when full.
+ *
+ * When directory is set, programs also stored on disk, so application restart does not need to download the player
+ * again before deciphering first video.
+ */
+public class YouTubeDecipherCache {
+    // default maximum players in memory
+    public static int DEFAULT_SIZE = 32;
+
+    static final String EXT = ".decipher";
+
+    protected int size;
+    protected File dir;
+    protected LinkedHashMap<String, YouTubeDecipher> map;
+
+    public YouTubeDecipherCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     *
+     * @param size
+     *            maximum players kept in memory
+     */
+    public YouTubeDecipherCache(int size) {
+        this.size = size;
+        map = new LinkedHashMap<String, YouTubeDecipher>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, YouTubeDecipher> eldest) {
+                return size() > YouTubeDecipherCache.this.size;
+            }
+        };
+    }
+
+    synchronized public int getSize() {
+        return size;
+    }
+
+    synchronized public void setSize(int size) {
+        this.size = size;
+        Iterator<String> i = map.keySet().iterator();
+        while (map.size() > size && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    synchronized public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Set directory to persist programs. Directory created on first write.
+     *
+     * @param dir
+     *            directory or null to keep programs in memory only
+     */
+    synchronized public void setDir(File dir) {
+        this.dir = dir;
+    }
+
+    File file(File dir, String key) {
+        return new File(dir, sha1(key) + EXT);
+    }
+
+    static String sha1(String key) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] buf = md.digest(key.getBytes(Charset.forName("UTF-8")));
+        StringBuilder sb = new StringBuilder(buf.length * 2);
+        for (byte b : buf)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Get program from memory or from disk.
+     *
+     * @param key
+     *            player url
+     * @return program or null
+     */
+    public YouTubeDecipher get(String key) {
+        File dir;
+        synchronized (this) {
+            YouTubeDecipher d = map.get(key);
+            if (d != null)
+                return d;
+            dir = this.dir;
+        }
+        if (dir == null)
+            return null;
+
+        File f = file(dir, key);
+        if (!f.exists())
+            return null;
+
+        YouTubeDecipher d;
+        try {
+            // first line: player url, second line: program
+            String[] lines = FileUtils.readFileToString(f, "UTF-8").split("\n");
+            if (lines.length < 2 || !lines[0].equals(key))
+                return null;
+            d = YouTubeDecipher.parse(lines[1]);
+        } catch (IOException e) {
+            return null;
+        } catch (DownloadError e) {
+            // corrupted or old format, drop it
+            FileUtils.deleteQuietly(f);
+            return null;
+        }
+
+        synchronized (this) {
+            map.put(key, d);
+        }
+        return d;
+    }
+
+    /**
+     * Store program in memory and on disk.
+     *
+     * @param key
+     *            player url
+     * @param d
+     *            program
+     */
+    public void put(String key, YouTubeDecipher d) {
+        File dir;
+        synchronized (this) {
+            map.put(key, d);
+            dir = this.dir;
+        }
+        if (dir == null)
+            return;
+
+        File f = file(dir, key);
+        File tmp = new File(dir, f.getName() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tmp, key + "\n" + d.toString() + "\n", "UTF-8");
+            if (!tmp.renameTo(f)) {
+                FileUtils.deleteQuietly(f);
+                if (!tmp.renameTo(f))
+                    FileUtils.deleteQuietly(tmp);
+            }
+        } catch (IOException e) {
+            // cache is optional, ignore write errors
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    /**
+     * Drop program. Use when stored program does not work anymore.
+     *
+     * @param key
+     *            player url
+     */
+    public void remove(String key) {
+        File dir;
+        synchronized (this) {
+            map.remove(key);
+            dir = this.dir;
+        }
+        if (dir != null)
+            FileUtils.deleteQuietly(file(dir, key));
+    }
+
+    synchronized public void clear() {
+        map.clear();
+    }
+}
@@ -1,5 +1,10 @@
 package com.github.axet.vget.vhs;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -12,22 +17,19 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.script.Invocable;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 
+import com.github.axet.vget.VGet;
+import com.github.axet.vget.VGetMetrics;
 import com.github.axet.vget.info.VGetParser;
+import com.github.axet.vget.info.VideoCache;
 import com.github.axet.vget.info.VideoFileInfo;
 import com.github.axet.vget.info.VideoInfo;
 import com.github.axet.vget.info.VideoInfo.States;
@@ -39,8 +41,11 @@ import com.github.axet.vget.vhs.YouTubeInfo.StreamCombined;
 import com.github.axet.vget.vhs.YouTubeInfo.StreamInfo;
 import com.github.axet.vget.vhs.YouTubeInfo.StreamVideo;
 import com.github.axet.vget.vhs.YouTubeInfo.YoutubeQuality;
+import com.github.axet.wget.RetryWrap;
 import com.github.axet.wget.WGet;
+import com.github.axet.wget.info.DownloadInfo;
 import com.github.axet.wget.info.ex.DownloadError;
+import com.github.axet.wget.info.ex.DownloadInterruptedError;
 import com.github.axet.wget.info.ex.DownloadRetry;
 
 public class YouTubeParser extends VGetParser {
@@ -85,74 +90,67 @@ public class YouTubeParser extends VGetParser {
 
     final static String UTF8 = "UTF-8";
 
+    // precompiled patterns, shared between all parsers and threads
+    static final Pattern DECODE_FUNCTION_NAME = Pattern.compile("\\.sig\\|\\|([a-zA-Z0-9$]+)\\(");
+    static final Pattern DECODE_FUNCTION_HELPER_NAME = Pattern.compile("\\);([a-zA-Z0-9]+)\\.");
+    static final Pattern ID_WATCH = Pattern.compile("youtube.com/watch?.*v=([^&]*)");
+    static final Pattern ID_V = Pattern.compile("youtube.com/v/([^&]*)");
+    static final Pattern ICON = Pattern.compile("itemprop=\"thumbnailUrl\" href=\"(.*)\"");
+    static final Pattern AGE = Pattern.compile("(verify_age)");
+    static final Pattern UNAVAILABLE = Pattern.compile("(unavailable-player)");
+    static final Pattern PLAYER_URL = Pattern.compile("(//.*?/player-[\\w\\d\\-]+\\/.*\\.js)");
+    static final Pattern FMT_STREAM_MAP = Pattern.compile("\"url_encoded_fmt_stream_map\":\"([^\"]*)\"");
+    static final Pattern ADAPTIVE_FMTS = Pattern.compile("\"adaptive_fmts\":\\s*\"([^\"]*)\"");
+    static final Pattern ENCOD_URL = Pattern.compile("url=(.*)");
+    static final Pattern ENCOD_STREAM = Pattern.compile("stream=(.*)");
+    static final Pattern STREAM_LINK = Pattern.compile("(sparams.*)&itag=(\\d+)&.*&conn=rtmpe(.*),");
+    static final Pattern TITLE = Pattern.compile("<meta name=\"title\" content=(.*)");
+    static final Pattern SPLIT_URL = Pattern.compile("url=");
+    static final Pattern SPLIT_STREAM = Pattern.compile("stream=");
+    static final Pattern LINK_URL = Pattern.compile("([^&,]*)[&,]");
+    static final Pattern LINK_ITAG = Pattern.compile("itag=(\\d+)");
+    static final Pattern LINK_SIGNATURE = Pattern.compile("&signature=([^&,]*)");
+    static final Pattern LINK_SIG = Pattern.compile("sig=([^&,]*)");
+    static final Pattern LINK_S = Pattern.compile("[&,]s=([^&,]*)");
+    static final Pattern EXPIRE = Pattern.compile("[?&]expire=(\\d+)");
+    static final Pattern CHARSET = Pattern.compile("charset=([^;\\s]+)");
+
     static class DecryptSignature {
+        // https://github.com/rg3/youtube-dl/blob/master/youtube_dl/extractor/youtube.py
+        static final Map<Integer, YouTubeDecipher> LEGACY = new HashMap<Integer, YouTubeDecipher>();
+
+        static {
+            LEGACY.put(93, YouTubeDecipher.parse("p86:29:-1 p88 p28:5:-1"));
+            LEGACY.put(92, YouTubeDecipher.parse("p25 p3:25 p0 p26:42 p79 p43:79 p91 p80:83"));
+            LEGACY.put(91, YouTubeDecipher.parse("p84:27:-1 p86 p26:5:-1"));
+            LEGACY.put(90, YouTubeDecipher.parse("p25 p3:25 p2 p26:40 p77 p41:77 p89 p78:81"));
+            LEGACY.put(89, YouTubeDecipher.parse("p84:78:-1 p87 p77:60:-1 p0 p59:3:-1"));
+            LEGACY.put(88, YouTubeDecipher.parse("p7:28 p87 p29:45 p55 p46:55 p2 p56:87 p28"));
+            LEGACY.put(87, YouTubeDecipher.parse("p6:27 p4 p28:39 p27 p40:59 p2 p60:"));
+            LEGACY.put(86, YouTubeDecipher.parse("p80:72:-1 p16 p71:39:-1 p72 p38:16:-1 p82 p15:0:-1"));
+            LEGACY.put(85, YouTubeDecipher.parse("p3:11 p0 p12:55 p84 p56:84"));
+            LEGACY.put(84, YouTubeDecipher.parse("p78:70:-1 p14 p69:37:-1 p70 p36:14:-1 p80 p0:14:-1"));
+            LEGACY.put(83, YouTubeDecipher.parse("p80:63:-1 p0 p62:0:-1 p63"));
+            LEGACY.put(82, YouTubeDecipher.parse("p80:37:-1 p7 p36:7:-1 p0 p6:0:-1 p37"));
+            LEGACY.put(81, YouTubeDecipher.parse(
+                    "p56 p79:56:-1 p41 p55:41:-1 p80 p40:34:-1 p0 p33:29:-1 p34 p28:9:-1 p29 p8:0:-1 p9"));
+            LEGACY.put(80, YouTubeDecipher.parse("p1:19 p0 p20:68 p19 p69:80"));
+            LEGACY.put(79, YouTubeDecipher.parse(
+                    "p54 p77:54:-1 p39 p53:39:-1 p78 p38:34:-1 p0 p33:29:-1 p34 p28:9:-1 p29 p8:0:-1 p9"));
+        }
+
         String sig;
 
         public DecryptSignature(String signature) {
             this.sig = signature;
         }
 
-        String s(int b, int e) {
-            return sig.substring(b, e);
-        }
-
-        String s(int b) {
-            return sig.substring(b, b + 1);
-        }
-
-        String se(int b) {
-            return s(b, sig.length());
-        }
-
-        String s(int b, int e, int step) {
-            String str = "";
-
-            while (b != e) {
-                str += sig.charAt(b);
-                b += step;
-            }
-            return str;
-        }
-
-        // https://github.com/rg3/youtube-dl/blob/master/youtube_dl/extractor/youtube.py
         String decrypt() {
-            switch (sig.length()) {
-            case 93:
-                return s(86, 29, -1) + s(88) + s(28, 5, -1);
-            case 92:
-                return s(25) + s(3, 25) + s(0) + s(26, 42) + s(79) + s(43, 79) + s(91) + s(80, 83);
-            case 91:
-                return s(84, 27, -1) + s(86) + s(26, 5, -1);
-            case 90:
-                return s(25) + s(3, 25) + s(2) + s(26, 40) + s(77) + s(41, 77) + s(89) + s(78, 81);
-            case 89:
-                return s(84, 78, -1) + s(87) + s(77, 60, -1) + s(0) + s(59, 3, -1);
-            case 88:
-                return s(7, 28) + s(87) + s(29, 45) + s(55) + s(46, 55) + s(2) + s(56, 87) + s(28);
-            case 87:
-                return s(6, 27) + s(4) + s(28, 39) + s(27) + s(40, 59) + s(2) + se(60);
-            case 86:
-                return s(80, 72, -1) + s(16) + s(71, 39, -1) + s(72) + s(38, 16, -1) + s(82) + s(15, 0, -1);
-            case 85:
-                return s(3, 11) + s(0) + s(12, 55) + s(84) + s(56, 84);
-            case 84:
-                return s(78, 70, -1) + s(14) + s(69, 37, -1) + s(70) + s(36, 14, -1) + s(80) + s(0, 14, -1);
-            case 83:
-                return s(80, 63, -1) + s(0) + s(62, 0, -1) + s(63);
-            case 82:
-                return s(80, 37, -1) + s(7) + s(36, 7, -1) + s(0) + s(6, 0, -1) + s(37);
-            case 81:
-                return s(56) + s(79, 56, -1) + s(41) + s(55, 41, -1) + s(80) + s(40, 34, -1) + s(0) + s(33, 29, -1)
-                        + s(34) + s(28, 9, -1) + s(29) + s(8, 0, -1) + s(9);
-            case 80:
-                return s(1, 19) + s(0) + s(20, 68) + s(19) + s(69, 80);
-            case 79:
-                return s(54) + s(77, 54, -1) + s(39) + s(53, 39, -1) + s(78) + s(38, 34, -1) + s(0) + s(33, 29, -1)
-                        + s(34) + s(28, 9, -1) + s(29) + s(8, 0, -1) + s(9);
-            }
-
-            throw new RuntimeException(
-                    "Unable to decrypt signature, key length " + sig.length() + " not supported; retrying might work");
+            YouTubeDecipher d = LEGACY.get(sig.length());
+            if (d == null)
+                throw new RuntimeException("Unable to decrypt signature, key length " + sig.length()
+                        + " not supported; retrying might work");
+            return d.decode(sig);
         }
     }
 
@@ -160,11 +158,19 @@ public class YouTubeParser extends VGetParser {
     static class DecryptSignatureHtml5 {
         String sig;
         URI playerURI;
-        static ConcurrentMap<String, String> playerCache = new ConcurrentHashMap<String, String>();
+        // parser to load player script with, null - plain java connection
+        VGetParser parser;
+        // decipher program for each player version
+        static YouTubeDecipherCache decoderCache = new YouTubeDecipherCache();
 
         public DecryptSignatureHtml5(String signatur, URI playerURI) {
+            this(signatur, playerURI, null);
+        }
+
+        public DecryptSignatureHtml5(String signatur, URI playerURI, VGetParser parser) {
             this.sig = signatur;
             this.playerURI = playerURI;
+            this.parser = parser;
         }
 
         /**
@@ -173,34 +179,28 @@ public class YouTubeParser extends VGetParser {
          * @return player.js file
          */
         private String getHtml5PlayerScript(final AtomicBoolean stop, final Runnable notify) {
-            String url = playerCache.get(playerURI.toString());
-
-            if (url == null) {
-                try {
-                    String result = WGet.getHtml(playerURI.toURL(), new WGet.HtmlLoader() {
-                        @Override
-                        public void notifyRetry(int delay, Throwable e) {
-                            notify.run();
-                        }
+            try {
+                URL url = playerURI.toURL();
+                DownloadInfo page = parser != null ? parser.page(url) : new DownloadInfo(url);
+                return WGet.getHtml(page, new WGet.HtmlLoader() {
+                    @Override
+                    public void notifyRetry(int delay, Throwable e) {
+                        notify.run();
+                    }
 
-                        @Override
-                        public void notifyMoved() {
-                            notify.run();
-                        }
+                    @Override
+                    public void notifyMoved() {
+                        notify.run();
+                    }
 
-                        @Override
-                        public void notifyDownloading() {
-                            notify.run();
-                        }
-                    }, stop);
-                    playerCache.put(playerURI.toString(), result);
-                    return result;
-                } catch (MalformedURLException e) {
-                    throw new RuntimeException(e);
-                }
+                    @Override
+                    public void notifyDownloading() {
+                        notify.run();
+                    }
+                }, stop);
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
             }
-
-            return url;
         }
 
         /**
@@ -213,8 +213,7 @@ public class YouTubeParser extends VGetParser {
          * @return name of decode-function or null
          */
         private String getMainDecodeFunctionName(String playerJS) {
-            Pattern decodeFunctionName = Pattern.compile("\\.sig\\|\\|([a-zA-Z0-9$]+)\\(");
-            Matcher decodeFunctionNameMatch = decodeFunctionName.matcher(playerJS);
+            Matcher decodeFunctionNameMatch = DECODE_FUNCTION_NAME.matcher(playerJS);
             if (decodeFunctionNameMatch.find()) {
                 return decodeFunctionNameMatch.group(1);
             }
@@ -246,8 +245,7 @@ public class YouTubeParser extends VGetParser {
 
             // determine the name of the helper function which is used by the
             // main decode function
-            Pattern decodeFunctionHelperName = Pattern.compile("\\);([a-zA-Z0-9]+)\\.");
-            Matcher decodeFunctionHelperNameMatch = decodeFunctionHelperName.matcher(decodeScript.toString());
+            Matcher decodeFunctionHelperNameMatch = DECODE_FUNCTION_HELPER_NAME.matcher(decodeScript.toString());
             if (decodeFunctionHelperNameMatch.find()) {
                 final String decodeFuncHelperName = decodeFunctionHelperNameMatch.group(1);
 
@@ -268,29 +266,108 @@ public class YouTubeParser extends VGetParser {
         }
 
         /**
-         * Decodes the youtube video signature using the decode functions provided in the html5player script.
+         * Get decipher program for current player. Player script downloaded and parsed only once per player version.
+         *
+         * @return decipher program
          */
-        String decrypt(AtomicBoolean stop, Runnable notify) {
-            ScriptEngineManager manager = new ScriptEngineManager();
-            // use a js script engine
-            ScriptEngine engine = manager.getEngineByName("JavaScript");
+        YouTubeDecipher getDecoder(AtomicBoolean stop, Runnable notify) {
+            String key = playerURI.toString();
+            YouTubeDecipher d = decoderCache.get(key);
+            if (d != null)
+                return d;
 
+            long start = System.nanoTime();
             final String playerScript = getHtml5PlayerScript(stop, notify);
             final String decodeFuncName = getMainDecodeFunctionName(playerScript);
+            if (decodeFuncName == null)
+                throw new DownloadError("Unable to determine the name of the main decode function!");
             final String decodeScript = extractDecodeFunctions(playerScript, decodeFuncName);
 
-            String decodedSignature = null;
-            try {
-                // evaluate script
-                engine.eval(decodeScript);
-                Invocable inv = (Invocable) engine;
-                // execute the javascript code directly
-                decodedSignature = (String) inv.invokeFunction(decodeFuncName, sig);
-            } catch (Exception e) {
-                throw new DownloadError("Unable to decrypt signature!");
+            d = YouTubeDecipher.compile(decodeScript, decodeFuncName);
+            decoderCache.put(key, d);
+            VGet.getMetrics().time(VGetMetrics.PLAYER, System.nanoTime() - start);
+            return d;
+        }
+
+        /**
+         * Decodes the youtube video signature using the decode functions provided in the html5player script.
+         */
+        String decrypt(AtomicBoolean stop, Runnable notify) {
+            return getDecoder(stop, notify).decode(sig);
+        }
+    }
+
+    /**
+     * Signature decipher programs cache, shared by all parsers. Use it to set memory limit or directory to persist
+     * programs between application restarts.
+     *
+     * @return decipher cache
+     */
+    public static YouTubeDecipherCache getDecipherCache() {
+        return DecryptSignatureHtml5.decoderCache;
+    }
+
+    /**
+     * Watch page fields collected in one pass over page lines. Each pattern runs only on lines containing its marker
+     * and only until found.
+     */
+    static class WatchPage {
+        boolean age;
+        boolean unavailable;
+        String player;
+        String fmtStreamMap;
+        String adaptiveFmts;
+        String title;
+        String icon;
+
+        /**
+         * Scan next page line.
+         * 
+         * @param line
+         *            page line
+         * @return true if everything found and rest of the page can be skipped
+         */
+        boolean line(String line) {
+            if (!age && line.contains("verify_age"))
+                age = AGE.matcher(line).find();
+            if (!unavailable && line.contains("unavailable-player"))
+                unavailable = UNAVAILABLE.matcher(line).find();
+            if (player == null && line.contains("/player-"))
+                player = group(PLAYER_URL, line);
+            if (fmtStreamMap == null && line.contains("\"url_encoded_fmt_stream_map\""))
+                fmtStreamMap = group(FMT_STREAM_MAP, line);
+            if (adaptiveFmts == null && line.contains("\"adaptive_fmts\""))
+                adaptiveFmts = group(ADAPTIVE_FMTS, line);
+            if (title == null && line.contains("<meta name=\"title\""))
+                title = group(TITLE, line);
+            if (icon == null && line.contains("thumbnailUrl"))
+                icon = group(ICON, line);
+            return done();
+        }
+
+        void scan(String html) {
+            int start = 0;
+            while (start < html.length()) {
+                int end = html.indexOf('\n', start);
+                if (end < 0)
+                    end = html.length();
+                if (line(html.substring(start, end)))
+                    return;
+                start = end + 1;
             }
+        }
 
-            return decodedSignature;
+        boolean done() {
+            if (age || unavailable)
+                return true;
+            return player != null && fmtStreamMap != null && adaptiveFmts != null && title != null && icon != null;
+        }
+
+        static String group(Pattern p, String line) {
+            Matcher m = p.matcher(line);
+            if (m.find())
+                return m.group(1);
+            return null;
         }
     }
 
@@ -339,9 +416,27 @@ public class YouTubeParser extends VGetParser {
 
     }
 
+    // start get_video_info request after (ms). -1 - only when watch page failed, 0 - together with watch page
+    protected int hedge = -1;
+
     public YouTubeParser() {
     }
 
+    /**
+     * Race watch page and get_video_info requests. First good result wins, other request interrupted.
+     *
+     * @param hedge
+     *            start get_video_info request after (ms). -1 - only when watch page failed (default), 0 - together with
+     *            watch page
+     */
+    public void setHedge(int hedge) {
+        this.hedge = hedge;
+    }
+
+    public int getHedge() {
+        return hedge;
+    }
+
     public static boolean probe(URL url) {
         return url.toString().contains("youtube.com");
     }
@@ -354,7 +449,53 @@ public class YouTubeParser extends VGetParser {
         });
     }
 
+    @Override
+    public String cacheKey(VideoInfo info) {
+        String id = extractId(info.getWeb());
+        if (id == null)
+            return null;
+        return "youtube:" + id;
+    }
+
+    @SuppressWarnings("unchecked")
     public List<VideoDownload> extractLinks(final YouTubeInfo info, final AtomicBoolean stop, final Runnable notify) {
+        VideoCache cache = this.cache;
+        String key = cache == null ? null : cacheKey(info);
+        if (key != null) {
+            VideoCache.Entry e = cache.get(key);
+            if (e != null) {
+                info.setTitle(e.title);
+                info.setIcon(e.icon);
+                info.setPlayerURI(e.player);
+                return new ArrayList<VideoDownload>((List<VideoDownload>) e.links);
+            }
+        }
+
+        List<VideoDownload> list = extractLinksNetwork(info, stop, notify);
+
+        if (key != null && !list.isEmpty()) {
+            long expires = 0;
+            for (VideoDownload d : list) {
+                Matcher m = EXPIRE.matcher(d.url.toString());
+                if (m.find()) {
+                    long e = Long.parseLong(m.group(1)) * 1000;
+                    if (expires == 0 || e < expires)
+                        expires = e;
+                }
+            }
+            VideoCache.Entry e = new VideoCache.Entry(info.getTitle(), info.getIcon(), list,
+                    VideoCache.expires(expires));
+            e.player = info.getPlayerURI();
+            cache.put(key, e);
+        }
+
+        return list;
+    }
+
+    List<VideoDownload> extractLinksNetwork(final YouTubeInfo info, final AtomicBoolean stop, final Runnable notify) {
+        if (hedge >= 0)
+            return extractHedged(info, stop, notify);
+
         try {
             List<VideoDownload> sNextVideoURL = new ArrayList<VideoDownload>();
 
@@ -375,6 +516,153 @@ public class YouTubeParser extends VGetParser {
         }
     }
 
+    /**
+     * One of raced extraction requests. Works on own YouTubeInfo copy, so loser does not touch caller info.
+     */
+    abstract class Hedge implements Runnable {
+        Object lock;
+        YouTubeInfo info;
+        List<VideoDownload> list = new ArrayList<VideoDownload>();
+        Exception e;
+        Thread thread;
+        boolean started;
+        boolean done;
+        boolean interrupted;
+
+        Hedge(Object lock, URL web) {
+            this.lock = lock;
+            this.info = new YouTubeInfo(web);
+        }
+
+        abstract void extract() throws Exception;
+
+        // call under lock
+        void start() {
+            started = true;
+            if (executor != null)
+                executor.execute(this);
+            else
+                new Thread(this, "YouTubeParser hedge").start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (lock) {
+                    if (interrupted)
+                        throw new DownloadInterruptedError("interrupted");
+                    thread = Thread.currentThread();
+                }
+                extract();
+            } catch (Exception ee) {
+                e = ee;
+            } finally {
+                synchronized (lock) {
+                    thread = null;
+                    done = true;
+                    lock.notifyAll();
+                }
+                // do not leak interrupted flag to the next executor task
+                Thread.interrupted();
+            }
+        }
+
+        // call under lock
+        boolean ok() {
+            return done && e == null && !list.isEmpty();
+        }
+
+        void interrupt() {
+            synchronized (lock) {
+                interrupted = true;
+                if (thread != null)
+                    thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Start watch page request, and get_video_info request after hedge delay (or as soon as watch page failed). Return
+     * first non empty result.
+     */
+    List<VideoDownload> extractHedged(final YouTubeInfo info, final AtomicBoolean stop, final Runnable notify) {
+        final Object lock = new Object();
+        final Hedge watch = new Hedge(lock, info.getWeb()) {
+            @Override
+            void extract() throws Exception {
+                streamCapture(list, this.info, stop, notify);
+            }
+        };
+        final Hedge embedded = new Hedge(lock, info.getWeb()) {
+            @Override
+            void extract() throws Exception {
+                extractEmbedded(list, this.info, stop, notify);
+            }
+        };
+
+        Hedge win = null;
+        try {
+            synchronized (lock) {
+                watch.start();
+                long start = System.currentTimeMillis();
+                while (true) {
+                    if (watch.ok())
+                        win = watch;
+                    else if (embedded.ok())
+                        win = embedded;
+                    if (win != null)
+                        break;
+                    if (watch.done && embedded.done)
+                        break;
+                    long now = System.currentTimeMillis();
+                    if (!embedded.started) {
+                        if (watch.done || now - start >= hedge) {
+                            embedded.start();
+                            continue;
+                        }
+                        lock.wait(start + hedge - now);
+                    } else {
+                        lock.wait();
+                    }
+                }
+            }
+        } catch (InterruptedException ee) {
+            watch.interrupt();
+            embedded.interrupt();
+            throw new DownloadInterruptedError(ee);
+        }
+
+        if (win == null) {
+            // both failed or empty, same errors as sequential mode
+            if (watch.e == null)
+                win = watch;
+            else if (!(watch.e instanceof DownloadError))
+                throw rethrow(watch.e);
+            else if (embedded.e == null)
+                win = embedded;
+            else if (embedded.e instanceof EmbeddingDisabled)
+                throw rethrow(watch.e);
+            else
+                throw rethrow(embedded.e);
+        }
+
+        Hedge loser = win == watch ? embedded : watch;
+        loser.interrupt();
+
+        if (win.info.getTitle() != null)
+            info.setTitle(win.info.getTitle());
+        if (win.info.getIcon() != null)
+            info.setIcon(win.info.getIcon());
+        info.setPlayerURI(win.info.getPlayerURI());
+        return win.list;
+    }
+
+    static RuntimeException rethrow(Exception e) {
+        if (e instanceof RuntimeException)
+            return (RuntimeException) e;
+        return new RuntimeException(e);
+    }
+
     /**
      * do not allow to download age restricted videos
      * 
@@ -385,28 +673,83 @@ public class YouTubeParser extends VGetParser {
      */
     void streamCapture(List<VideoDownload> sNextVideoURL, final YouTubeInfo info, final AtomicBoolean stop,
             final Runnable notify) throws Exception {
-        String html;
-        html = WGet.getHtml(info.getWeb(), new WGet.HtmlLoader() {
+        VGetMetrics m = VGet.getMetrics();
+        long start = System.nanoTime();
+        WatchPage page = getWatchPage(info, stop, notify);
+        long now = System.nanoTime();
+        m.time(VGetMetrics.PAGE, now - start);
+        start = now;
+        extractHtmlInfo(sNextVideoURL, info, page, stop, notify);
+        extractIcon(info, page);
+        m.time(VGetMetrics.PARSE, System.nanoTime() - start);
+    }
+
+    /**
+     * Read watch page line by line and stop reading as soon as all fields found. Page never kept in memory as a whole.
+     */
+    WatchPage getWatchPage(final YouTubeInfo info, final AtomicBoolean stop, final Runnable notify) {
+        return RetryWrap.wrap(stop, new RetryWrap.WrapReturn<WatchPage>() {
+            DownloadInfo dinfo = page(info.getWeb());
+
             @Override
-            public void notifyRetry(int delay, Throwable e) {
+            public void proxy() {
+                dinfo.getProxy().set();
+            }
+
+            @Override
+            public void retry(int delay, Throwable e) {
                 info.setRetrying(delay, e);
                 notify.run();
             }
 
             @Override
-            public void notifyDownloading() {
+            public WatchPage download() throws IOException {
+                HttpURLConnection conn = dinfo.openConnection();
+                RetryWrap.check(conn);
+
                 info.setState(States.DOWNLOADING);
                 notify.run();
+
+                String enc = null;
+                String type = conn.getContentType();
+                if (type != null) {
+                    Matcher m = CHARSET.matcher(type);
+                    if (m.find())
+                        enc = m.group(1);
+                }
+                if (enc == null)
+                    enc = UTF8;
+
+                WatchPage page = new WatchPage();
+                InputStream is = conn.getInputStream();
+                try {
+                    BufferedReader br = new BufferedReader(new InputStreamReader(is, enc));
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        if (page.line(line))
+                            break;
+                        if (stop.get())
+                            throw new DownloadInterruptedError("stop");
+                        if (Thread.currentThread().isInterrupted())
+                            throw new DownloadInterruptedError("interrupted");
+                    }
+                } finally {
+                    is.close();
+                    // do not reuse connection with unread body
+                    conn.disconnect();
+                }
+                return page;
             }
 
             @Override
-            public void notifyMoved() {
+            public void moved(URL url) {
+                DownloadInfo old = dinfo;
+                dinfo = page(url);
+                dinfo.setReferer(old.getReferer());
                 info.setState(States.RETRYING);
                 notify.run();
             }
-        }, stop);
-        extractHtmlInfo(sNextVideoURL, info, html, stop, notify);
-        extractIcon(info, html);
+        });
     }
 
     /**
@@ -509,15 +852,13 @@ public class YouTubeParser extends VGetParser {
 
     public static String extractId(URL url) {
         {
-            Pattern u = Pattern.compile("youtube.com/watch?.*v=([^&]*)");
-            Matcher um = u.matcher(url.toString());
+            Matcher um = ID_WATCH.matcher(url.toString());
             if (um.find())
                 return um.group(1);
         }
 
         {
-            Pattern u = Pattern.compile("youtube.com/v/([^&]*)");
-            Matcher um = u.matcher(url.toString());
+            Matcher um = ID_V.matcher(url.toString());
             if (um.find())
                 return um.group(1);
         }
@@ -546,7 +887,9 @@ public class YouTubeParser extends VGetParser {
 
         URL url = new URL(get);
 
-        String qs = WGet.getHtml(url, new WGet.HtmlLoader() {
+        VGetMetrics m = VGet.getMetrics();
+        long start = System.nanoTime();
+        String qs = WGet.getHtml(page(url), new WGet.HtmlLoader() {
             @Override
             public void notifyRetry(int delay, Throwable e) {
                 info.setRetrying(delay, e);
@@ -565,6 +908,9 @@ public class YouTubeParser extends VGetParser {
                 notify.run();
             }
         }, stop);
+        long now = System.nanoTime();
+        m.time(VGetMetrics.PAGE, now - start);
+        start = now;
 
         Map<String, String> map = getQueryMap(qs);
 
@@ -592,14 +938,19 @@ public class YouTubeParser extends VGetParser {
         String icon = map.get("thumbnail_url");
         icon = URLDecoder.decode(icon, UTF8);
         info.setIcon(new URL(icon));
+        m.time(VGetMetrics.PARSE, System.nanoTime() - start);
     }
 
     void extractIcon(VideoInfo info, String html) {
+        WatchPage page = new WatchPage();
+        page.scan(html);
+        extractIcon(info, page);
+    }
+
+    void extractIcon(VideoInfo info, WatchPage page) {
         try {
-            Pattern title = Pattern.compile("itemprop=\"thumbnailUrl\" href=\"(.*)\"");
-            Matcher titleMatch = title.matcher(html);
-            if (titleMatch.find()) {
-                String sline = titleMatch.group(1);
+            if (page.icon != null) {
+                String sline = page.icon;
                 sline = StringEscapeUtils.unescapeHtml4(sline);
                 info.setIcon(new URL(sline));
             }
@@ -627,40 +978,31 @@ public class YouTubeParser extends VGetParser {
 
     void extractHtmlInfo(List<VideoDownload> sNextVideoURL, YouTubeInfo info, String html, AtomicBoolean stop,
             Runnable notify) throws Exception {
-        {
-            Pattern age = Pattern.compile("(verify_age)");
-            Matcher ageMatch = age.matcher(html);
-            if (ageMatch.find())
-                throw new AgeException();
-        }
+        WatchPage page = new WatchPage();
+        page.scan(html);
+        extractHtmlInfo(sNextVideoURL, info, page, stop, notify);
+    }
 
-        {
-            Pattern age = Pattern.compile("(unavailable-player)");
-            Matcher ageMatch = age.matcher(html);
-            if (ageMatch.find())
-                throw new VideoUnavailablePlayer();
-        }
+    void extractHtmlInfo(List<VideoDownload> sNextVideoURL, YouTubeInfo info, WatchPage page, AtomicBoolean stop,
+            Runnable notify) throws Exception {
+        if (page.age)
+            throw new AgeException();
+
+        if (page.unavailable)
+            throw new VideoUnavailablePlayer();
 
         // grab html5 player url
-        {
-            Pattern playerURL = Pattern.compile("(//.*?/player-[\\w\\d\\-]+\\/.*\\.js)");
-            Matcher playerVersionMatch = playerURL.matcher(html);
-            if (playerVersionMatch.find()) {
-                info.setPlayerURI(new URI("https:" + playerVersionMatch.group(1)));
-            }
-        }
+        if (page.player != null)
+            info.setPlayerURI(new URI("https:" + page.player));
 
         // combined streams
         {
-            Pattern urlencod = Pattern.compile("\"url_encoded_fmt_stream_map\":\"([^\"]*)\"");
-            Matcher urlencodMatch = urlencod.matcher(html);
-            if (urlencodMatch.find()) {
+            if (page.fmtStreamMap != null) {
                 String url_encoded_fmt_stream_map;
-                url_encoded_fmt_stream_map = urlencodMatch.group(1);
+                url_encoded_fmt_stream_map = page.fmtStreamMap;
 
                 // normal embedded video, unable to grab age restricted videos
-                Pattern encod = Pattern.compile("url=(.*)");
-                Matcher encodMatch = encod.matcher(url_encoded_fmt_stream_map);
+                Matcher encodMatch = ENCOD_URL.matcher(url_encoded_fmt_stream_map);
                 if (encodMatch.find()) {
                     String sline = encodMatch.group(1);
 
@@ -668,18 +1010,16 @@ public class YouTubeParser extends VGetParser {
                 }
 
                 // stream video
-                Pattern encodStream = Pattern.compile("stream=(.*)");
-                Matcher encodStreamMatch = encodStream.matcher(url_encoded_fmt_stream_map);
+                Matcher encodStreamMatch = ENCOD_STREAM.matcher(url_encoded_fmt_stream_map);
                 if (encodStreamMatch.find()) {
                     String sline = encodStreamMatch.group(1);
 
-                    String[] urlStrings = sline.split("stream=");
+                    String[] urlStrings = SPLIT_STREAM.split(sline);
 
                     for (String urlString : urlStrings) {
                         urlString = StringEscapeUtils.unescapeJava(urlString);
 
-                        Pattern link = Pattern.compile("(sparams.*)&itag=(\\d+)&.*&conn=rtmpe(.*),");
-                        Matcher linkMatch = link.matcher(urlString);
+                        Matcher linkMatch = STREAM_LINK.matcher(urlString);
                         if (linkMatch.find()) {
 
                             String sparams = linkMatch.group(1);
@@ -699,15 +1039,12 @@ public class YouTubeParser extends VGetParser {
 
         // separate streams
         {
-            Pattern urlencod = Pattern.compile("\"adaptive_fmts\":\\s*\"([^\"]*)\"");
-            Matcher urlencodMatch = urlencod.matcher(html);
-            if (urlencodMatch.find()) {
+            if (page.adaptiveFmts != null) {
                 String url_encoded_fmt_stream_map;
-                url_encoded_fmt_stream_map = urlencodMatch.group(1);
+                url_encoded_fmt_stream_map = page.adaptiveFmts;
 
                 // normal embedded video, unable to grab age restricted videos
-                Pattern encod = Pattern.compile("url=(.*)");
-                Matcher encodMatch = encod.matcher(url_encoded_fmt_stream_map);
+                Matcher encodMatch = ENCOD_URL.matcher(url_encoded_fmt_stream_map);
                 if (encodMatch.find()) {
                     String sline = encodMatch.group(1);
 
@@ -715,18 +1052,16 @@ public class YouTubeParser extends VGetParser {
                 }
 
                 // stream video
-                Pattern encodStream = Pattern.compile("stream=(.*)");
-                Matcher encodStreamMatch = encodStream.matcher(url_encoded_fmt_stream_map);
+                Matcher encodStreamMatch = ENCOD_STREAM.matcher(url_encoded_fmt_stream_map);
                 if (encodStreamMatch.find()) {
                     String sline = encodStreamMatch.group(1);
 
-                    String[] urlStrings = sline.split("stream=");
+                    String[] urlStrings = SPLIT_STREAM.split(sline);
 
                     for (String urlString : urlStrings) {
                         urlString = StringEscapeUtils.unescapeJava(urlString);
 
-                        Pattern link = Pattern.compile("(sparams.*)&itag=(\\d+)&.*&conn=rtmpe(.*),");
-                        Matcher linkMatch = link.matcher(urlString);
+                        Matcher linkMatch = STREAM_LINK.matcher(urlString);
                         if (linkMatch.find()) {
 
                             String sparams = linkMatch.group(1);
@@ -745,10 +1080,8 @@ public class YouTubeParser extends VGetParser {
         }
 
         {
-            Pattern title = Pattern.compile("<meta name=\"title\" content=(.*)");
-            Matcher titleMatch = title.matcher(html);
-            if (titleMatch.find()) {
-                String sline = titleMatch.group(1);
+            if (page.title != null) {
+                String sline = page.title;
                 String name = sline.replaceFirst("<meta name=\"title\" content=", "").trim();
                 name = StringUtils.strip(name, "\">");
                 name = StringEscapeUtils.unescapeHtml4(name);
@@ -759,7 +1092,7 @@ public class YouTubeParser extends VGetParser {
 
     void extractUrlEncodedVideos(List<VideoDownload> sNextVideoURL, String sline, YouTubeInfo info, AtomicBoolean stop,
             Runnable notify) throws Exception {
-        String[] urlStrings = sline.split("url=");
+        String[] urlStrings = SPLIT_URL.split(sline);
 
         for (String urlString : urlStrings) {
             urlString = StringEscapeUtils.unescapeJava(urlString);
@@ -770,8 +1103,7 @@ public class YouTubeParser extends VGetParser {
             {
                 String url = null;
                 {
-                    Pattern link = Pattern.compile("([^&,]*)[&,]");
-                    Matcher linkMatch = link.matcher(urlString);
+                    Matcher linkMatch = LINK_URL.matcher(urlString);
                     if (linkMatch.find()) {
                         url = linkMatch.group(1);
                         url = URLDecoder.decode(url, UTF8);
@@ -780,8 +1112,7 @@ public class YouTubeParser extends VGetParser {
 
                 String itag = null;
                 {
-                    Pattern link = Pattern.compile("itag=(\\d+)");
-                    Matcher linkMatch = link.matcher(urlFull);
+                    Matcher linkMatch = LINK_ITAG.matcher(urlFull);
                     if (linkMatch.find()) {
                         itag = linkMatch.group(1);
                     }
@@ -790,34 +1121,33 @@ public class YouTubeParser extends VGetParser {
                 String sig = null;
 
                 if (sig == null) {
-                    Pattern link = Pattern.compile("&signature=([^&,]*)");
-                    Matcher linkMatch = link.matcher(urlFull);
+                    Matcher linkMatch = LINK_SIGNATURE.matcher(urlFull);
                     if (linkMatch.find()) {
                         sig = linkMatch.group(1);
                     }
                 }
 
                 if (sig == null) {
-                    Pattern link = Pattern.compile("sig=([^&,]*)");
-                    Matcher linkMatch = link.matcher(urlFull);
+                    Matcher linkMatch = LINK_SIG.matcher(urlFull);
                     if (linkMatch.find()) {
                         sig = linkMatch.group(1);
                     }
                 }
 
                 if (sig == null) {
-                    Pattern link = Pattern.compile("[&,]s=([^&,]*)");
-                    Matcher linkMatch = link.matcher(urlFull);
+                    Matcher linkMatch = LINK_S.matcher(urlFull);
                     if (linkMatch.find()) {
                         sig = linkMatch.group(1);
 
+                        long start = System.nanoTime();
                         if (info.getPlayerURI() == null) {
                             DecryptSignature ss = new DecryptSignature(sig);
                             sig = ss.decrypt();
                         } else {
-                            DecryptSignatureHtml5 ss = new DecryptSignatureHtml5(sig, info.getPlayerURI());
+                            DecryptSignatureHtml5 ss = new DecryptSignatureHtml5(sig, info.getPlayerURI(), this);
                             sig = ss.decrypt(stop, notify);
                         }
+                        VGet.getMetrics().time(VGetMetrics.DECIPHER, System.nanoTime() - start);
                     }
                 }
 
@@ -0,0 +1,90 @@
+package com.github.axet.vget.vhs;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.github.axet.vget.info.VGetPlaylistParser;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * YouTube playlist and channel videos. First page is html, next pages loaded by "load more" button urls
+ * (browse_ajax), which returns json with html parts.
+ *
+ * "https://www.youtube.com/playlist?list=PL...", "https://www.youtube.com/channel/UC...",
+ * "https://www.youtube.com/user/name"
+ */
+public class YouTubePlaylistParser extends VGetPlaylistParser {
+
+    // precompiled patterns, shared between all parsers and threads
+    static final Pattern PLAYLIST = Pattern.compile("youtube.com/playlist\\?.*list=([^&]+)");
+    static final Pattern CHANNEL = Pattern.compile("youtube.com/((?:channel|user|c)/[^/?&#]+)");
+    static final Pattern VIDEO_ID = Pattern.compile("(?:data-video-id=\"|href=\"/watch\\?v=)([\\w-]{11})");
+    static final Pattern LOAD_MORE = Pattern.compile("data-uix-load-more-href=\"([^\"]+)\"");
+
+    public static final String BASE = "https://www.youtube.com";
+
+    // next page url, null if list ended
+    protected URL next;
+    protected boolean first = true;
+
+    public YouTubePlaylistParser(URL web) {
+        try {
+            Matcher m = CHANNEL.matcher(web.toString());
+            if (m.find())
+                next = new URL(BASE + "/" + m.group(1) + "/videos");
+            else
+                next = web;
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static boolean probe(URL url) {
+        String s = url.toString();
+        return PLAYLIST.matcher(s).find() || CHANNEL.matcher(s).find();
+    }
+
+    @Override
+    public List<URL> next(AtomicBoolean stop, Runnable notify) {
+        if (next == null)
+            return null;
+        try {
+            String html = html(next, stop, notify);
+            if (!first) {
+                // browse_ajax, {"content_html": "...", "load_more_widget_html": "..."}
+                Map<String, String> map = new Gson().fromJson(html, new TypeToken<Map<String, String>>() {
+                }.getType());
+                html = map.get("content_html") + map.get("load_more_widget_html");
+            }
+            first = false;
+
+            Set<String> ids = new LinkedHashSet<String>();
+            Matcher m = VIDEO_ID.matcher(html);
+            while (m.find())
+                ids.add(m.group(1));
+
+            next = null;
+            Matcher more = LOAD_MORE.matcher(html);
+            if (more.find())
+                next = new URL(BASE + StringEscapeUtils.unescapeHtml4(more.group(1)));
+
+            List<URL> list = new ArrayList<URL>();
+            for (String id : ids)
+                list.add(new URL(BASE + "/watch?v=" + id));
+            return list;
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -97,13 +97,16 @@ public class AppManagedDownload {
                         SpeedInfo speedInfo = getSpeedInfo(dinfo);
                         speedInfo.step(dinfo.getCount());
 
-                        List<Part> pp = dinfo.getParts();
-                        if (pp != null) {
-                            // multipart download
-                            for (Part p : pp) {
-                                if (p.getState().equals(States.DOWNLOADING)) {
-                                    parts += String.format("part#%d(%.2f) ", p.getNumber(),
-                                            p.getCount() / (float) p.getLength());
+                        // multipart download can add parts while downloading, lock info
+                        synchronized (dinfo) {
+                            List<Part> pp = dinfo.getParts();
+                            if (pp != null) {
+                                // multipart download
+                                for (Part p : pp) {
+                                    if (p.getState().equals(States.DOWNLOADING)) {
+                                        parts += String.format("part#%d(%.2f) ", p.getNumber(),
+                                                p.getCount() / (float) p.getLength());
+                                    }
                                 }
                             }
                         }
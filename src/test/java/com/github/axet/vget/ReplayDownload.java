@@ -0,0 +1,445 @@
+package com.github.axet.vget;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+
+import com.github.axet.vget.ReplayServer.Media;
+import com.github.axet.vget.info.VGetParser;
+import com.github.axet.vget.info.VideoFileInfo;
+import com.github.axet.vget.info.VideoInfo;
+import com.github.axet.vget.vhs.YouTubeParser;
+import com.github.axet.wget.RetryWrap;
+import com.github.axet.wget.info.DownloadInfo.Part;
+import com.github.axet.wget.info.ex.DownloadInterruptedError;
+
+/**
+ * Offline end-to-end download against ReplayServer. Measures download throughput and checks retry paths (injected
+ * 403 / 416 / 500 responses and expired stream urls) without network.
+ */
+public class ReplayDownload {
+
+    static ReplayServer server;
+    static File dir;
+
+    static class Status implements Runnable {
+        VideoInfo info;
+        VideoInfo.States last;
+        int retries;
+
+        Status(VideoInfo info) {
+            this.info = info;
+        }
+
+        @Override
+        public void run() {
+            VideoInfo.Snapshot s = info.snapshot();
+            if (s.getState() == last)
+                return;
+            last = s.getState();
+            if (last == VideoInfo.States.RETRYING) {
+                retries++;
+                System.out.println("  " + last + " " + s.getException());
+            }
+        }
+    }
+
+    static void download(String name, URL web, Media... media) throws Exception {
+        download(name, web, null, media);
+    }
+
+    static void download(String name, URL web, VGetPool pool, Media... media) throws Exception {
+        VGetParser user = server.parser(web);
+        VideoInfo info = user.info(web);
+        VGet v = new VGet(info, dir, pool);
+        Status notify = new Status(info);
+
+        long start = System.currentTimeMillis();
+        v.download(user, new AtomicBoolean(), notify);
+        long time = Math.max(1, System.currentTimeMillis() - start);
+
+        long total = 0;
+        boolean ok = true;
+        List<VideoFileInfo> list = info.getInfo();
+        for (int i = 0; i < list.size(); i++) {
+            InputStream is = new FileInputStream(list.get(i).targetFile);
+            try {
+                ok &= media[i].check(is);
+            } finally {
+                is.close();
+            }
+            total += media[i].getLength();
+        }
+        System.out.println(String.format("%s: %s, %d ms, %s, retries %d", name, ok ? "OK" : "BAD CONTENT", time,
+                AppManagedDownload.formatSpeed(total * 1000 / time), notify.retries));
+        if (!ok)
+            throw new RuntimeException(name + " bad content");
+    }
+
+    static boolean check(VideoInfo info, Media m) throws Exception {
+        InputStream is = new FileInputStream(info.getInfo().get(0).targetFile);
+        try {
+            return m.check(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        // retry fast, we are local
+        RetryWrap.RETRY_DELAY = 1;
+        VGetStats stats = new VGetStats();
+        VGet.setMetrics(stats);
+
+        try {
+            server = new ReplayServer();
+            dir = File.createTempFile("vget-replay", "");
+            dir.delete();
+            dir.mkdirs();
+            try {
+                // separate video / audio streams, throttled
+                {
+                    Media video = server.media("v1", "video/mp4", 16 * 1024 * 1024);
+                    Media audio = server.media("a1", "audio/mp4", 2 * 1024 * 1024);
+                    video.setThrottle(8 * 1024 * 1024);
+                    Map<Integer, Media> adaptive = new LinkedHashMap<Integer, Media>();
+                    adaptive.put(137, video);
+                    adaptive.put(140, audio);
+                    URL web = server.youtube("replayAAAA1", "Replay: adaptive \"streams\"", null, adaptive);
+                    download("youtube adaptive", web, video, audio);
+                }
+                // one pool thread, one connection per host: multipart streams download parts alone
+                {
+                    Media video = server.media("v1t", "video/mp4", 8 * 1024 * 1024);
+                    Media audio = server.media("a1t", "audio/mp4", 2 * 1024 * 1024);
+                    Map<Integer, Media> adaptive = new LinkedHashMap<Integer, Media>();
+                    adaptive.put(137, video);
+                    adaptive.put(140, audio);
+                    URL web = server.youtube("replayAAAAT", "Replay tight pool", null, adaptive);
+                    download("youtube tight pool", web, new VGetPool(1, 2, 1), video, audio);
+                }
+                // existing "title.mp4": streams with the same extension still switch to ".video.mp4" / ".audio.mp4"
+                {
+                    Media video = server.media("v1c", "video/mp4", 1024 * 1024);
+                    Media audio = server.media("a1c", "audio/mp4", 256 * 1024);
+                    Map<Integer, Media> adaptive = new LinkedHashMap<Integer, Media>();
+                    adaptive.put(137, video);
+                    adaptive.put(140, audio);
+                    String title = "Replay conflict";
+                    URL web = server.youtube("replayAAAAC", title, null, adaptive);
+                    FileUtils.touch(new File(dir, VGet.maxFileNameLength(VGet.replaceBadChars(title)) + ".mp4"));
+                    VGetParser user = server.parser(web);
+                    VideoInfo info = user.info(web);
+                    new VGet(info, dir).download(user, new AtomicBoolean(), new Status(info));
+                    String v = info.getInfo().get(0).targetFile.getName();
+                    String a = info.getInfo().get(1).targetFile.getName();
+                    boolean ok = v.endsWith(".video.mp4") && a.endsWith(".audio.mp4");
+                    System.out.println(String.format("youtube name conflict: %s, %s, %s", ok ? "OK" : "BAD NAMES", v, a));
+                    if (!ok)
+                        throw new RuntimeException("name conflict");
+                }
+                // combined stream, first stream requests fail
+                {
+                    Media video = server.media("v2", "video/mp4", 8 * 1024 * 1024);
+                    Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                    combined.put(22, video);
+                    URL web = server.youtube("replayAAAA2", "Replay combined", combined, null);
+                    video.fail(403, 1);
+                    video.fail(500, 1);
+                    download("youtube errors", web, video);
+                }
+                // error thrown on stream thread fails the video, never ends DONE
+                {
+                    Media video = server.media("v2e", "video/mp4", 1024 * 1024);
+                    Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                    combined.put(18, video);
+                    URL web = server.youtube("replayAAAAE", "Replay stream error", combined, null);
+                    VGetParser user = server.parser(web);
+                    VideoInfo info = user.info(web);
+                    VGet v = new VGet(info, dir);
+                    v.setListener(new VGetListener.Adapter() {
+                        @Override
+                        public void onBytes(VideoFileInfo file, long delta) {
+                            throw new AssertionError("listener");
+                        }
+                    });
+                    Throwable e = null;
+                    try {
+                        v.download(user, new AtomicBoolean(), new Status(info));
+                    } catch (Throwable ee) {
+                        e = ee;
+                    }
+                    boolean ok = e instanceof AssertionError && info.getState() == VideoInfo.States.ERROR;
+                    System.out.println(String.format("youtube stream error: %s, %s, %s", ok ? "OK" : "BAD", e,
+                            info.getState()));
+                    if (!ok)
+                        throw new RuntimeException("stream error lost");
+                }
+                // caller thread interrupted during stream probes keeps its interrupt
+                {
+                    final Media video = server.media("v2i", "video/mp4", 1024 * 1024);
+                    final Media audio = server.media("a2i", "audio/mp4", 256 * 1024);
+                    video.setDelay(1000);
+                    audio.setDelay(1000);
+                    Map<Integer, Media> adaptive = new LinkedHashMap<Integer, Media>();
+                    adaptive.put(137, video);
+                    adaptive.put(140, audio);
+                    URL web = server.youtube("replayAAAAI", "Replay interrupted probe", null, adaptive);
+                    VGetParser user = server.parser(web);
+                    VideoInfo info = user.info(web);
+                    final Thread main = Thread.currentThread();
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                while (video.getRequests() + audio.getRequests() < 2)
+                                    Thread.sleep(10);
+                                Thread.sleep(200);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            main.interrupt();
+                        }
+                    });
+                    t.start();
+                    Throwable e = null;
+                    try {
+                        new VGet(info, dir).extract(user, new AtomicBoolean(), new Status(info));
+                    } catch (Throwable ee) {
+                        e = ee;
+                    }
+                    boolean interrupted = Thread.interrupted();
+                    t.join();
+                    video.setDelay(0);
+                    audio.setDelay(0);
+                    boolean ok = e instanceof DownloadInterruptedError && interrupted;
+                    System.out.println(String.format("youtube interrupted probe: %s, %s, interrupted %b",
+                            ok ? "OK" : "BAD", e, interrupted));
+                    if (!ok)
+                        throw new RuntimeException("probe lost interrupt");
+                }
+                // watch page down, get_video_info used
+                {
+                    Media video = server.media("v3", "video/mp4", 4 * 1024 * 1024);
+                    Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                    combined.put(18, video);
+                    URL web = server.youtube("replayAAAA3", "Replay embedded", combined, null);
+                    server.failPage("replayAAAA3", 500, 1);
+                    server.unavailable("replayAAAA3");
+                    download("youtube embedded", web, video);
+                }
+                // stream urls expire between extract and download
+                {
+                    Media video = server.media("v4", "video/mp4", 4 * 1024 * 1024);
+                    Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                    combined.put(22, video);
+                    URL web = server.youtube("replayAAAA4", "Replay expired", combined, null);
+                    server.setExpire(1);
+                    VGetParser user = server.parser(web);
+                    VideoInfo info = user.info(web);
+                    VGet v = new VGet(info, dir);
+                    v.extract(user, new AtomicBoolean(), new Status(info));
+                    Thread.sleep(2000);
+                    server.setExpire(60);
+                    Status notify = new Status(info);
+                    v.download(user, new AtomicBoolean(), notify);
+                    InputStream is = new FileInputStream(info.getInfo().get(0).targetFile);
+                    try {
+                        System.out.println(String.format("youtube expired: %s, expired requests %d, retries %d",
+                                video.check(is) ? "OK" : "BAD CONTENT", server.getExpired(), notify.retries));
+                    } finally {
+                        is.close();
+                    }
+                    server.setExpire(0);
+                }
+                // vimeo
+                {
+                    Media hd = server.media("hd", "video/mp4", 8 * 1024 * 1024);
+                    Media sd = server.media("sd", "video/mp4", 1024 * 1024);
+                    URL web = server.vimeo("49243107", "Replay Vimeo", hd, sd);
+                    hd.fail(416, 1);
+                    download("vimeo", web, hd);
+                }
+                // multipart download killed half way, new VGet continues from the journal
+                {
+                    final Media video = server.media("v5", "video/mp4", 16 * 1024 * 1024);
+                    video.setThrottle(8 * 1024 * 1024);
+                    Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                    combined.put(22, video);
+                    URL web = server.youtube("replayAAAA5", "Replay journal", combined, null);
+                    VGetParser user = server.parser(web);
+                    VideoInfo info = user.info(web);
+                    VGet v = new VGet(info, dir);
+                    v.extract(user, new AtomicBoolean(), new Status(info));
+                    info.getInfo().get(0).enableMultipart(1024 * 1024);
+                    final AtomicBoolean stop = new AtomicBoolean();
+                    final VideoFileInfo first = info.getInfo().get(0);
+                    try {
+                        v.download(user, stop, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (first.getCount() > video.getLength() / 2)
+                                    stop.set(true);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        // stopped
+                    }
+                    long served = video.getBytes();
+                    File target = first.targetFile;
+
+                    user = server.parser(web);
+                    info = user.info(web);
+                    v = new VGet(info, dir);
+                    long start = System.currentTimeMillis();
+                    v.download(user, new AtomicBoolean(), new Status(info));
+                    // split tails reuse finished parts, ranges still cover whole file
+                    List<Part> parts = info.getInfo().get(0).getParts();
+                    boolean ok = check(info, video) && target.equals(info.getInfo().get(0).targetFile)
+                            && !VGetJournal.file(target).exists() && VGetJournal.covers(parts, video.getLength());
+                    System.out.println(String.format(
+                            "youtube journal: %s, %d ms, first run %d KB, resumed %d KB, parts %d", ok ? "OK" : "BAD",
+                            System.currentTimeMillis() - start, served / 1024, (video.getBytes() - served) / 1024,
+                            parts.size()));
+                    if (!ok || video.getBytes() - served >= video.getLength())
+                        throw new RuntimeException("journal resume failed");
+                }
+                // multipart stream under bandwidth budget
+                {
+                    Media video = server.media("v6", "video/mp4", 4 * 1024 * 1024);
+                    Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                    combined.put(22, video);
+                    URL web = server.youtube("replayAAAA6", "Replay bandwidth", combined, null);
+                    VGetParser user = server.parser(web);
+                    VideoInfo info = user.info(web);
+                    VGet v = new VGet(info, dir);
+                    long limit = 4 * 1024 * 1024;
+                    v.setBandwidth(new VGetBandwidth(limit));
+                    v.extract(user, new AtomicBoolean(), new Status(info));
+                    info.getInfo().get(0).enableMultipart(512 * 1024);
+                    long start = System.currentTimeMillis();
+                    v.download(user, new AtomicBoolean(), new Status(info));
+                    long time = Math.max(1, System.currentTimeMillis() - start);
+                    long rate = video.getLength() * 1000 / time;
+                    // part threads share one stream budget, stream rate stays near it
+                    boolean ok = check(info, video) && rate < limit * 2 && rate > limit / 2;
+                    System.out.println(String.format("youtube bandwidth: %s, %d ms, %s, budget %s", ok ? "OK" : "BAD",
+                            time, AppManagedDownload.formatSpeed(rate), AppManagedDownload.formatSpeed(limit)));
+                    if (!ok)
+                        throw new RuntimeException("bandwidth failed");
+                }
+                // youtube playlist, 3 pages, fed into queue
+                {
+                    List<String> ids = new ArrayList<String>();
+                    Map<String, Media> media = new LinkedHashMap<String, Media>();
+                    for (int i = 0; i < 7; i++) {
+                        String id = String.format("replayList%d", i);
+                        Media m = server.media("pl" + i, "video/mp4", 1024 * 1024);
+                        Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                        combined.put(18, m);
+                        server.youtube(id, "Playlist video " + i, combined, null);
+                        ids.add(id);
+                        media.put(id, m);
+                    }
+                    URL web = server.youtubePlaylist("PLreplay", "Replay playlist", ids, 3);
+                    VGetQueue q = new VGetQueue(dir, 2);
+                    long start = System.currentTimeMillis();
+                    q.add(server.playlist(web, dir, q.getPool(), 2), 0);
+                    q.join();
+                    int ok = 0;
+                    for (VGetQueue.Job j : q.getJobs()) {
+                        String id = YouTubeParser.extractId(j.getVideo().getWeb());
+                        if (j.getVideo().getState() == VideoInfo.States.DONE && check(j.getVideo(), media.get(id)))
+                            ok++;
+                    }
+                    q.shutdown();
+                    System.out.println(String.format("youtube playlist: %d/%d OK, %d ms", ok, ids.size(),
+                            System.currentTimeMillis() - start));
+                    if (ok != ids.size())
+                        throw new RuntimeException("playlist failed");
+                }
+                // youtube playlist, second page fails, iterator still returns first page videos
+                {
+                    List<String> ids = new ArrayList<String>();
+                    List<Media> media = new ArrayList<Media>();
+                    for (int i = 0; i < 5; i++) {
+                        String id = String.format("replayBrok%d", i);
+                        Media m = server.media("br" + i, "video/mp4", 1024 * 1024);
+                        Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+                        combined.put(18, m);
+                        server.youtube(id, "Broken list video " + i, combined, null);
+                        ids.add(id);
+                        media.add(m);
+                    }
+                    URL web = server.youtubePlaylist("PLbroken", "Broken playlist", ids, 3);
+                    server.failList("PLbroken", 404);
+                    VGetPlaylist list = server.playlist(web, dir, new VGetPool(4), 2);
+                    int i = 0;
+                    int ok = 0;
+                    RuntimeException failed = null;
+                    try {
+                        while (list.hasNext()) {
+                            VGetPlaylist.Entry e = list.next();
+                            e.download(new AtomicBoolean(), new Status(e.getVideo()));
+                            if (check(e.getVideo(), media.get(i++)))
+                                ok++;
+                        }
+                    } catch (RuntimeException e) {
+                        failed = e;
+                    }
+                    System.out.println(String.format("youtube broken playlist: %d/3 OK, %s", ok,
+                            failed == null ? "no error" : "error " + failed.getClass().getSimpleName()));
+                    if (ok != 3 || failed == null || list.getException() != failed)
+                        throw new RuntimeException("broken playlist failed");
+                }
+                // vimeo channel, 2 pages, iterator
+                {
+                    List<String> ids = new ArrayList<String>();
+                    List<Media> media = new ArrayList<Media>();
+                    for (int i = 0; i < 4; i++) {
+                        String id = Integer.toString(1000 + i);
+                        Media hd = server.media("ch" + i, "video/mp4", 1024 * 1024);
+                        server.vimeo(id, "Channel video " + i, hd, server.media("chsd" + i, "video/mp4", 1024));
+                        ids.add(id);
+                        media.add(hd);
+                    }
+                    URL web = server.vimeoChannel("replay", "Replay channel", ids, 3);
+                    VGetPlaylist list = server.playlist(web, dir, new VGetPool(4), 2);
+                    int i = 0;
+                    int ok = 0;
+                    while (list.hasNext()) {
+                        VGetPlaylist.Entry e = list.next();
+                        e.download(new AtomicBoolean(), new Status(e.getVideo()));
+                        if (check(e.getVideo(), media.get(i++)))
+                            ok++;
+                    }
+                    System.out.println(String.format("vimeo channel: %d/%d OK", ok, ids.size()));
+                    if (ok != ids.size())
+                        throw new RuntimeException("channel failed");
+                }
+                // all downloads ended, no directory index left
+                synchronized (VGetNames.dirs) {
+                    if (!VGetNames.dirs.isEmpty())
+                        throw new RuntimeException("name index leak " + VGetNames.dirs.keySet());
+                }
+                System.out.println("pages " + server.getPages());
+                System.out.print(stats);
+            } finally {
+                server.stop();
+                FileUtils.deleteQuietly(dir);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
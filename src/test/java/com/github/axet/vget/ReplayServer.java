@@ -0,0 +1,788 @@
+package com.github.axet.vget;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.github.axet.vget.info.VGetParser;
+import com.github.axet.vget.info.VGetPlaylistParser;
+import com.github.axet.vget.vhs.VimeoParser;
+import com.github.axet.vget.vhs.VimeoPlaylistParser;
+import com.github.axet.vget.vhs.YouTubeDecipher;
+import com.github.axet.vget.vhs.YouTubeParser;
+import com.github.axet.vget.vhs.YouTubePlaylistParser;
+import com.github.axet.wget.info.DownloadInfo;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for YouTube / Vimeo. Serves recorded watch pages, get_video_info, player script and Vimeo configs
+ * from test fixtures, and synthetic media bodies with Range support, throttling, error injection and expiring urls.
+ *
+ * Parsers returned by youtube() / vimeo() load every web page from this server, stream urls inside pages already point
+ * here. No network access needed.
+ */
+public class ReplayServer {
+    static final Pattern EXPIRE = Pattern.compile("[?&]expire=(\\d+)");
+    static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    static final Pattern VIMEO_CONFIG = Pattern.compile("/player.vimeo.com/video/(\\d+)/config");
+    static final Pattern VIMEO_CHANNEL = Pattern.compile("/vimeo.com/channels/([^/]+)(?:/videos/page:(\\d+))?");
+    static final Pattern CONTINUATION = Pattern.compile("(.+):(\\d+)");
+    static final String PLAYER = "/s.ytimg.com/yts/jsbin/player-en_US-vflReplay/base.js";
+
+    /**
+     * Synthetic media body. Content generated from position, so any range can be served and checked.
+     */
+    public static class Media {
+        String name;
+        String contentType;
+        long length;
+        // bytes per second for each request, 0 - unlimited
+        volatile long throttle;
+        // ms before response headers, slow server
+        volatile long delay;
+        // response codes for next requests, before serving body
+        List<Integer> fail = new ArrayList<Integer>();
+
+        AtomicInteger requests = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        Media(String name, String contentType, long length) {
+            this.name = name;
+            this.contentType = contentType;
+            this.length = length;
+        }
+
+        public static byte get(long pos) {
+            return (byte) ((pos * 2654435761L) >>> 13);
+        }
+
+        public void setThrottle(long throttle) {
+            this.throttle = throttle;
+        }
+
+        public void setDelay(long delay) {
+            this.delay = delay;
+        }
+
+        /**
+         * Fail next requests with code (403, 416, 500 ...).
+         *
+         * @param code
+         *            http code
+         * @param count
+         *            number of requests
+         */
+        synchronized public void fail(int code, int count) {
+            for (int i = 0; i < count; i++)
+                fail.add(code);
+        }
+
+        synchronized Integer nextFail() {
+            if (fail.isEmpty())
+                return null;
+            return fail.remove(0);
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public int getRequests() {
+            return requests.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Check downloaded file.
+         *
+         * @param is
+         *            file content
+         * @return true if content and length match
+         * @throws IOException
+         *             on read error
+         */
+        public boolean check(InputStream is) throws IOException {
+            byte[] buf = new byte[64 * 1024];
+            long pos = 0;
+            int r;
+            while ((r = is.read(buf)) >= 0) {
+                for (int i = 0; i < r; i++) {
+                    if (buf[i] != get(pos + i))
+                        return false;
+                }
+                pos += r;
+            }
+            return pos == length;
+        }
+    }
+
+    HttpServer server;
+    ExecutorService executor;
+    String base;
+
+    // stream urls lifetime (seconds), 0 - no expire
+    volatile int expire = 0;
+
+    Map<String, Media> media = new ConcurrentHashMap<String, Media>();
+    Map<String, YouTubeVideo> youtube = new ConcurrentHashMap<String, YouTubeVideo>();
+    Map<String, VimeoVideo> vimeo = new ConcurrentHashMap<String, VimeoVideo>();
+    Map<String, Playlist> playlists = new ConcurrentHashMap<String, Playlist>();
+
+    AtomicInteger pages = new AtomicInteger();
+    AtomicInteger expired = new AtomicInteger();
+
+    String playerScript;
+    YouTubeDecipher decipher;
+
+    static class YouTubeVideo {
+        String id;
+        String title;
+        Map<Integer, Media> combined = new LinkedHashMap<Integer, Media>();
+        Map<Integer, Media> adaptive = new LinkedHashMap<Integer, Media>();
+        // watch page errors
+        List<Integer> fail = new ArrayList<Integer>();
+        // watch page shows player error, parser falls back to get_video_info
+        boolean unavailable;
+    }
+
+    static class VimeoVideo {
+        String id;
+        String title;
+        Media hd;
+        Media sd;
+    }
+
+    static class Playlist {
+        String id;
+        String title;
+        List<String> ids;
+        int size;
+        Integer fail;
+
+        int pages() {
+            return (ids.size() + size - 1) / size;
+        }
+
+        List<String> page(int n) {
+            return ids.subList(n * size, Math.min(ids.size(), (n + 1) * size));
+        }
+    }
+
+    public ReplayServer() throws IOException {
+        playerScript = load("youtube-player.js");
+        decipher = YouTubeDecipher.compile(playerScript, "Ep");
+
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange x) throws IOException {
+                try {
+                    ReplayServer.this.handle(x);
+                } catch (IOException e) {
+                    // client closed connection
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    send(x, 500, "text/plain", e.toString());
+                } finally {
+                    x.close();
+                }
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    static String load(String name) throws IOException {
+        InputStream is = ReplayServer.class.getResourceAsStream("/fixtures/" + name);
+        if (is == null)
+            throw new IOException("fixture not found: " + name);
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    /**
+     * Set stream urls lifetime. Requests to expired stream urls fail with 403, like real sites do.
+     *
+     * @param sec
+     *            seconds, 0 - no expire
+     */
+    public void setExpire(int sec) {
+        expire = sec;
+    }
+
+    public int getPages() {
+        return pages.get();
+    }
+
+    public int getExpired() {
+        return expired.get();
+    }
+
+    public Media media(String name, String contentType, long length) {
+        Media m = new Media(name, contentType, length);
+        media.put(name, m);
+        return m;
+    }
+
+    /**
+     * Add YouTube video.
+     *
+     * @param id
+     *            video id
+     * @param title
+     *            video title
+     * @param combined
+     *            itag -> media, combined video / audio streams (url_encoded_fmt_stream_map)
+     * @param adaptive
+     *            itag -> media, separate streams (adaptive_fmts)
+     * @return watch page url
+     */
+    public URL youtube(String id, String title, Map<Integer, Media> combined, Map<Integer, Media> adaptive) {
+        YouTubeVideo v = new YouTubeVideo();
+        v.id = id;
+        v.title = title;
+        if (combined != null)
+            v.combined.putAll(combined);
+        if (adaptive != null)
+            v.adaptive.putAll(adaptive);
+        youtube.put(id, v);
+        return url("https://www.youtube.com/watch?v=" + id);
+    }
+
+    /**
+     * Fail next watch page requests for video.
+     */
+    public void failPage(String id, int code, int count) {
+        YouTubeVideo v = youtube.get(id);
+        synchronized (v) {
+            for (int i = 0; i < count; i++)
+                v.fail.add(code);
+        }
+    }
+
+    /**
+     * Show "unavailable" player on watch page, so parser falls back to get_video_info.
+     */
+    public void unavailable(String id) {
+        youtube.get(id).unavailable = true;
+    }
+
+    public URL vimeo(String id, String title, Media hd, Media sd) {
+        VimeoVideo v = new VimeoVideo();
+        v.id = id;
+        v.title = title;
+        v.hd = hd;
+        v.sd = sd;
+        vimeo.put(id, v);
+        return url("https://vimeo.com/" + id);
+    }
+
+    Playlist playlist(String id, String title, List<String> ids, int size) {
+        Playlist p = new Playlist();
+        p.id = id;
+        p.title = title;
+        p.ids = new ArrayList<String>(ids);
+        p.size = size;
+        playlists.put(id, p);
+        return p;
+    }
+
+    /**
+     * Add YouTube playlist. Videos have to be added with youtube() to be downloadable.
+     *
+     * @param size
+     *            videos per page, next pages served as browse_ajax json
+     * @return playlist url
+     */
+    public URL youtubePlaylist(String id, String title, List<String> ids, int size) {
+        playlist(id, title, ids, size);
+        return url("https://www.youtube.com/playlist?list=" + id);
+    }
+
+    /**
+     * Fail next pages (browse_ajax) of YouTube playlist, first page still served.
+     */
+    public void failList(String id, int code) {
+        playlists.get(id).fail = code;
+    }
+
+    /**
+     * Add Vimeo channel. Videos have to be added with vimeo() to be downloadable.
+     *
+     * @param size
+     *            videos per page, pages linked with rel="next"
+     * @return channel url
+     */
+    public URL vimeoChannel(String id, String title, List<String> ids, int size) {
+        playlist(id, title, ids, size);
+        return url("https://vimeo.com/channels/" + id);
+    }
+
+    static URL url(String s) {
+        try {
+            return new URL(s);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Map site url to this server: "https://www.youtube.com/watch?v=1" to
+     * "http://127.0.0.1:port/www.youtube.com/watch?v=1"
+     *
+     * @param url
+     *            site url
+     * @return local url
+     */
+    public URL local(URL url) {
+        if (url.toString().startsWith(base))
+            return url;
+        String file = url.getFile();
+        return url(base + "/" + url.getHost() + file);
+    }
+
+    /**
+     * @return YouTube parser loading all pages from this server
+     */
+    public YouTubeParser youtube() {
+        return new YouTubeParser() {
+            @Override
+            public DownloadInfo page(URL url) {
+                return super.page(local(url));
+            }
+        };
+    }
+
+    /**
+     * @return Vimeo parser loading all pages from this server
+     */
+    public VimeoParser vimeo() {
+        return new VimeoParser() {
+            @Override
+            public DownloadInfo page(URL url) {
+                return super.page(local(url));
+            }
+        };
+    }
+
+    /**
+     * @return playlist parser loading all pages from this server
+     */
+    public VGetPlaylistParser playlist(URL web) {
+        if (YouTubePlaylistParser.probe(web)) {
+            return new YouTubePlaylistParser(web) {
+                @Override
+                public DownloadInfo page(URL url) {
+                    return super.page(local(url));
+                }
+            };
+        }
+        if (VimeoPlaylistParser.probe(web)) {
+            return new VimeoPlaylistParser(web) {
+                @Override
+                public DownloadInfo page(URL url) {
+                    return super.page(local(url));
+                }
+            };
+        }
+        throw new RuntimeException("unsupported playlist");
+    }
+
+    /**
+     * @return playlist iterator, list and videos loaded from this server
+     */
+    public VGetPlaylist playlist(URL web, File targetDir, VGetPool pool, int lookahead) {
+        return new VGetPlaylist(playlist(web), targetDir, pool, lookahead) {
+            @Override
+            protected VGetParser video(URL web) {
+                return ReplayServer.this.parser(web);
+            }
+        };
+    }
+
+    public VGetParser parser(URL web) {
+        if (YouTubeParser.probe(web))
+            return youtube();
+        if (VimeoParser.probe(web))
+            return vimeo();
+        throw new RuntimeException("unsupported web site");
+    }
+
+    static String enc(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Map<String, String> query(String q) {
+        Map<String, String> map = new HashMap<String, String>();
+        if (q == null)
+            return map;
+        for (String s : q.split("&")) {
+            int i = s.indexOf('=');
+            if (i > 0)
+                map.put(s.substring(0, i), s.substring(i + 1));
+        }
+        return map;
+    }
+
+    String expireParam() {
+        int e = expire;
+        if (e <= 0)
+            return "";
+        return "&expire=" + (System.currentTimeMillis() / 1000 + e);
+    }
+
+    /**
+     * Scrambled signature, decoded by player script.
+     */
+    static String scrambled(Media m) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 86; i++)
+            sb.append(i % 41 == 40 ? '.' : (char) ('A' + (m.name.hashCode() + i * 7) % 26 + (i % 2) * 32));
+        return sb.toString();
+    }
+
+    /**
+     * @param cipher
+     *            true - scrambled signature (watch page), false - plain signature (get_video_info)
+     */
+    String stream(int itag, Media m, boolean cipher) {
+        String url = base + "/r1---sn-replay.googlevideo.com/videoplayback?id=" + m.name + "&itag=" + itag
+                + "&mime=" + enc(m.contentType) + expireParam();
+        // "&" as in real pages, parser unescapes it
+        String sig = cipher ? "\\u0026s=" + scrambled(m) : "\\u0026sig=" + decipher.decode(scrambled(m));
+        return "url=" + enc(url) + "\\u0026itag=" + itag + sig + "\\u0026type=" + enc(m.contentType);
+    }
+
+    String streams(Map<Integer, Media> map, boolean cipher) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Media> e : map.entrySet()) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(stream(e.getKey(), e.getValue(), cipher));
+        }
+        return sb.toString();
+    }
+
+    void handle(HttpExchange x) throws IOException {
+        String path = x.getRequestURI().getPath();
+        Map<String, String> q = query(x.getRequestURI().getRawQuery());
+
+        if (path.startsWith("/r1---sn-replay.googlevideo.com/videoplayback")) {
+            Media m = media.get(q.get("id"));
+            if (m == null) {
+                send(x, 404, "text/plain", "not found");
+                return;
+            }
+            if (q.get("signature") == null || !q.get("signature").equals(decipher.decode(scrambled(m)))) {
+                send(x, 403, "text/plain", "bad signature");
+                return;
+            }
+            media(x, m);
+            return;
+        }
+        if (path.startsWith("/media/")) {
+            Media m = media.get(path.substring("/media/".length()));
+            if (m == null) {
+                send(x, 404, "text/plain", "not found");
+                return;
+            }
+            media(x, m);
+            return;
+        }
+
+        pages.incrementAndGet();
+
+        if (path.equals("/www.youtube.com/watch")) {
+            YouTubeVideo v = youtube.get(q.get("v"));
+            if (v == null) {
+                send(x, 404, "text/html", "not found");
+                return;
+            }
+            Integer code = null;
+            synchronized (v) {
+                if (!v.fail.isEmpty())
+                    code = v.fail.remove(0);
+            }
+            if (code != null) {
+                send(x, code, "text/html", "error");
+                return;
+            }
+            String html = load("youtube-watch.html");
+            html = html.replace("${id}", v.id);
+            html = html.replace("${title}", StringEscapeUtils.escapeHtml4(v.title));
+            html = html.replace("${fmt}", streams(v.combined, true));
+            html = html.replace("${adaptive}", streams(v.adaptive, true));
+            html = html.replace("${player}", v.unavailable ? "unavailable-player" : "player");
+            send(x, 200, "text/html; charset=utf-8", html);
+            return;
+        }
+        if (path.equals("/www.youtube.com/get_video_info")) {
+            YouTubeVideo v = youtube.get(q.get("video_id"));
+            if (v == null) {
+                send(x, 200, "application/x-www-form-urlencoded",
+                        "status=fail&errorcode=100&reason=" + enc("This video does not exist."));
+                return;
+            }
+            String fmt = streams(v.combined, false).replace("\\u0026", "&");
+            String qs = "status=ok&video_id=" + v.id + "&title=" + enc(v.title) + "&url_encoded_fmt_stream_map="
+                    + enc(fmt) + "&thumbnail_url=" + enc("https://i.ytimg.com/vi/" + v.id + "/default.jpg");
+            send(x, 200, "application/x-www-form-urlencoded", qs);
+            return;
+        }
+        if (path.equals("/www.youtube.com/playlist")) {
+            Playlist p = playlists.get(q.get("list"));
+            if (p == null) {
+                send(x, 404, "text/html", "not found");
+                return;
+            }
+            String html = load("youtube-playlist.html");
+            html = html.replace("${title}", StringEscapeUtils.escapeHtml4(p.title));
+            html = html.replace("${rows}", youtubeRows(p, 0));
+            html = html.replace("${more}", youtubeMore(p, 0));
+            send(x, 200, "text/html; charset=utf-8", html);
+            return;
+        }
+        if (path.equals("/www.youtube.com/browse_ajax")) {
+            String c = q.get("continuation");
+            Matcher cm = CONTINUATION.matcher(c == null ? "" : URLDecoder.decode(c, "UTF-8"));
+            Playlist p = cm.matches() ? playlists.get(cm.group(1)) : null;
+            if (p == null) {
+                send(x, 404, "application/json", "{}");
+                return;
+            }
+            if (p.fail != null) {
+                send(x, p.fail, "application/json", "{}");
+                return;
+            }
+            int n = Integer.parseInt(cm.group(2));
+            Map<String, String> json = new LinkedHashMap<String, String>();
+            json.put("content_html", youtubeRows(p, n));
+            json.put("load_more_widget_html", youtubeMore(p, n));
+            send(x, 200, "application/json; charset=UTF-8", new Gson().toJson(json));
+            return;
+        }
+        Matcher cm = VIMEO_CHANNEL.matcher(path);
+        if (cm.matches()) {
+            Playlist p = playlists.get(cm.group(1));
+            int n = cm.group(2) == null ? 0 : Integer.parseInt(cm.group(2)) - 1;
+            if (p == null || n >= p.pages()) {
+                send(x, 404, "text/html", "not found");
+                return;
+            }
+            StringBuilder clips = new StringBuilder();
+            for (String id : p.page(n)) {
+                clips.append("<li id=\"clip_" + id + "\" data-position=\"" + id + "\">");
+                clips.append("<a href=\"/" + id + "\" title=\"" + StringEscapeUtils.escapeHtml4(vimeoTitle(id))
+                        + "\">" + StringEscapeUtils.escapeHtml4(vimeoTitle(id)) + "</a></li>\n");
+            }
+            String next = "";
+            if (n + 1 < p.pages())
+                next = "<link rel=\"next\" href=\"/channels/" + p.id + "/videos/page:" + (n + 2) + "\">";
+            String html = load("vimeo-channel.html");
+            html = html.replace("${title}", StringEscapeUtils.escapeHtml4(p.title));
+            html = html.replace("${clips}", clips.toString());
+            html = html.replace("${next}", next);
+            send(x, 200, "text/html; charset=utf-8", html);
+            return;
+        }
+        if (path.equals(PLAYER)) {
+            send(x, 200, "text/javascript", playerScript);
+            return;
+        }
+        if (path.startsWith("/vimeo.com/m/")) {
+            VimeoVideo v = vimeo.get(path.substring("/vimeo.com/m/".length()));
+            if (v == null) {
+                send(x, 404, "text/html", "not found");
+                return;
+            }
+            String html = load("vimeo-clip.html");
+            html = html.replace("${id}", v.id);
+            html = html.replace("${title}", StringEscapeUtils.escapeHtml4(v.title));
+            send(x, 200, "text/html; charset=utf-8", html);
+            return;
+        }
+        Matcher vm = VIMEO_CONFIG.matcher(path);
+        if (vm.matches()) {
+            VimeoVideo v = vimeo.get(vm.group(1));
+            if (v == null) {
+                send(x, 404, "application/json", "{}");
+                return;
+            }
+            String e = expireParam();
+            String json = load("vimeo-config.json");
+            json = json.replace("${id}", v.id);
+            json = json.replace("${title}", v.title.replace("\\", "\\\\").replace("\"", "\\\""));
+            json = json.replace("${hd}", base + "/media/" + v.hd.name + "?vimeo=1" + e);
+            json = json.replace("${sd}", base + "/media/" + v.sd.name + "?vimeo=1" + e);
+            json = json.replace("${timestamp}", Long.toString(System.currentTimeMillis() / 1000));
+            json = json.replace("${expires}", Integer.toString(expire));
+            send(x, 200, "application/json", json);
+            return;
+        }
+
+        send(x, 404, "text/plain", "not found");
+    }
+
+    String youtubeRows(Playlist p, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (String id : p.page(n)) {
+            YouTubeVideo v = youtube.get(id);
+            String title = StringEscapeUtils.escapeHtml4(v == null ? id : v.title);
+            sb.append("<tr class=\"pl-video yt-uix-tile \" data-set-video-id=\"\" data-title=\"" + title
+                    + "\" data-video-id=\"" + id + "\">");
+            sb.append("<td class=\"pl-video-title\"><a class=\"pl-video-title-link\" dir=\"ltr\" href=\"/watch?v="
+                    + id + "&amp;list=" + p.id + "&amp;index=" + (p.ids.indexOf(id) + 1) + "\">" + title
+                    + "</a></td></tr>\n");
+        }
+        return sb.toString();
+    }
+
+    String youtubeMore(Playlist p, int n) {
+        if (n + 1 >= p.pages())
+            return "";
+        return "<button class=\"yt-uix-button load-more-button\" type=\"button\" "
+                + "data-uix-load-more-href=\"/browse_ajax?action_continuation=1&amp;continuation=" + p.id + "%3A"
+                + (n + 1) + "\" data-uix-load-more-target-id=\"pl-load-more-destination\">Load more</button>";
+    }
+
+    String vimeoTitle(String id) {
+        VimeoVideo v = vimeo.get(id);
+        return v == null ? id : v.title;
+    }
+
+    void send(HttpExchange x, int code, String type, String body) throws IOException {
+        byte[] b = body.getBytes("UTF-8");
+        x.getResponseHeaders().set("Content-Type", type);
+        x.sendResponseHeaders(code, b.length);
+        OutputStream os = x.getResponseBody();
+        os.write(b);
+        os.close();
+    }
+
+    void media(HttpExchange x, Media m) throws IOException {
+        m.requests.incrementAndGet();
+
+        if (m.delay > 0) {
+            try {
+                Thread.sleep(m.delay);
+            } catch (InterruptedException ee) {
+                return;
+            }
+        }
+
+        String query = x.getRequestURI().getRawQuery();
+        Matcher e = EXPIRE.matcher(query == null ? "" : "?" + query);
+        if (e.find() && Long.parseLong(e.group(1)) * 1000 < System.currentTimeMillis()) {
+            expired.incrementAndGet();
+            send(x, 403, "text/plain", "expired");
+            return;
+        }
+
+        Integer code = m.nextFail();
+        if (code != null) {
+            send(x, code, "text/plain", "injected error");
+            return;
+        }
+
+        long start = 0;
+        long end = m.length - 1;
+        boolean range = false;
+        String r = x.getRequestHeaders().getFirst("Range");
+        if (r != null) {
+            Matcher rm = RANGE.matcher(r);
+            if (rm.matches()) {
+                start = Long.parseLong(rm.group(1));
+                if (rm.group(2).length() > 0)
+                    end = Math.min(end, Long.parseLong(rm.group(2)));
+                range = true;
+            }
+        }
+        if (start >= m.length || start > end) {
+            x.getResponseHeaders().set("Content-Range", "bytes */" + m.length);
+            send(x, 416, "text/plain", "range not satisfiable");
+            return;
+        }
+
+        x.getResponseHeaders().set("Content-Type", m.contentType);
+        x.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (range) {
+            x.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + m.length);
+            x.sendResponseHeaders(206, end - start + 1);
+        } else {
+            x.sendResponseHeaders(200, m.length);
+        }
+
+        OutputStream os = x.getResponseBody();
+        byte[] buf = new byte[16 * 1024];
+        long begin = System.currentTimeMillis();
+        long sent = 0;
+        long pos = start;
+        try {
+            while (pos <= end) {
+                int n = (int) Math.min(buf.length, end - pos + 1);
+                for (int i = 0; i < n; i++)
+                    buf[i] = Media.get(pos + i);
+                os.write(buf, 0, n);
+                pos += n;
+                sent += n;
+                m.bytes.addAndGet(n);
+
+                long t = m.throttle;
+                if (t > 0) {
+                    long wait = sent * 1000 / t - (System.currentTimeMillis() - begin);
+                    if (wait > 0)
+                        Thread.sleep(wait);
+                }
+            }
+        } catch (InterruptedException ee) {
+            return;
+        }
+        os.close();
+    }
+}
@@ -0,0 +1,5 @@
+var _yt_player={};(function(g){var window=this;
+var Dp={Mx:function(a,b){var c=a[0];a[0]=a[b%a.length];a[b%a.length]=c},Qr:function(a){a.reverse()},Pn:function(a,b){a.splice(0,b)}};
+Ep=function(a){a=a.split("");Dp.Pn(a,3);Dp.Mx(a,42);Dp.Pn(a,49);Dp.Qr(a,1);Dp.Mx(a,63);Dp.Pn(a,1);return a.join("")};
+g.Tq=function(c,d){d=c.s;c.sig||Ep(d);return c};
+})(_yt_player);
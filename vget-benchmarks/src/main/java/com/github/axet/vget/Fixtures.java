@@ -0,0 +1,26 @@
+package com.github.axet.vget;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Load recorded pages from benchmark resources.
+ */
+public class Fixtures {
+
+    public static String load(String name) {
+        InputStream is = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (is == null)
+            throw new RuntimeException("fixture not found: " + name);
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.github.axet.vget;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.axet.vget.info.VideoFileInfo;
+import com.github.axet.vget.info.VideoInfo;
+
+/**
+ * Target file name generation cost. Names released after every call, so every call searches the same series.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VGetBenchmark {
+
+    String title;
+    File dir;
+    VGet v;
+    VideoFileInfo dinfo;
+    AtomicBoolean conflict;
+
+    // directory with 500 videos of the same title
+    File dups;
+    VGet v500;
+    VideoFileInfo dinfo500;
+
+    @Setup
+    public void setup() throws Exception {
+        title = "Daft Punk - Get Lucky (Official Audio) ft. Pharrell Williams, Nile Rodgers: \"Random Access\" <HD>";
+
+        dir = File.createTempFile("vget-benchmark", "");
+        dir.delete();
+        dir.mkdirs();
+
+        URL web = new URL("https://www.youtube.com/watch?v=5NV6Rdv1a3I");
+        VideoInfo info = new VideoInfo(web);
+        info.setTitle(title);
+        dinfo = new VideoFileInfo(new URL("https://r1---sn.googlevideo.com/videoplayback?itag=22"));
+        List<VideoFileInfo> list = new ArrayList<VideoFileInfo>();
+        list.add(dinfo);
+        info.setInfo(list);
+
+        v = new VGet(info, dir);
+        conflict = new AtomicBoolean();
+
+        // one conflict file on disk, so name search takes second round
+        String name = VGet.maxFileNameLength(VGet.replaceBadChars(title));
+        FileUtils.touch(new File(dir, name + ".mp4"));
+
+        dups = new File(dir, "dups");
+        dups.mkdirs();
+        for (int i = 0; i < 500; i++)
+            FileUtils.touch(new File(dups, VGetNames.name(name, ".mp4", i)));
+        dinfo500 = new VideoFileInfo(new URL("https://r1---sn.googlevideo.com/videoplayback?itag=22"));
+        List<VideoFileInfo> list500 = new ArrayList<VideoFileInfo>();
+        list500.add(dinfo500);
+        VideoInfo info500 = new VideoInfo(web);
+        info500.setTitle(title);
+        info500.setInfo(list500);
+        v500 = new VGet(info500, dups);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public String replaceBadChars() {
+        return VGet.replaceBadChars(title);
+    }
+
+    @Benchmark
+    public File targetFileExt() {
+        dinfo.targetFile = null;
+        v.targetFileExt(dinfo, ".mp4", conflict);
+        v.release(dinfo.targetFile);
+        return dinfo.targetFile;
+    }
+
+    @Benchmark
+    public File targetFileExt500() {
+        dinfo500.targetFile = null;
+        v500.targetFileExt(dinfo500, ".mp4", conflict);
+        v500.release(dinfo500.targetFile);
+        return dinfo500.targetFile;
+    }
+
+}
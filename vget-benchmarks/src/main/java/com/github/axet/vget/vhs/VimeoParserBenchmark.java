@@ -0,0 +1,60 @@
+package com.github.axet.vget.vhs;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.axet.vget.Fixtures;
+import com.github.axet.vget.vhs.VimeoParser.VimeoData;
+import com.google.gson.Gson;
+
+/**
+ * Vimeo url parsing and player config decoding cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VimeoParserBenchmark {
+
+    URL web;
+    URL clip;
+    String config;
+    Gson gson;
+
+    @Setup
+    public void setup() throws Exception {
+        web = new URL("http://vimeo.com/channels/staffpicks/49243107");
+        clip = new URL("http://vimeo.com/moogaloop.swf?clip_id=49243107");
+        config = Fixtures.load("vimeo-config.json");
+        gson = new Gson();
+    }
+
+    @Benchmark
+    public String extractId() {
+        return VimeoParser.extractId(web);
+    }
+
+    @Benchmark
+    public String extractIdClip() {
+        return VimeoParser.extractId(clip);
+    }
+
+    @Benchmark
+    public VimeoData decodeConfig() {
+        return gson.fromJson(config, VimeoData.class);
+    }
+
+}
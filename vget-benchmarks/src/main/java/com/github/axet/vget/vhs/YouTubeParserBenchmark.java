@@ -0,0 +1,133 @@
+package com.github.axet.vget.vhs;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.axet.vget.Fixtures;
+import com.github.axet.vget.vhs.YouTubeParser.VideoDownload;
+
+/**
+ * Per page extraction cost of the YouTube watch page parser and signature decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YouTubeParserBenchmark {
+
+    String html;
+    String urlEncoded;
+    URL web;
+    YouTubeParser parser;
+    AtomicBoolean stop;
+    Runnable notify;
+
+    String decodeScript;
+    // legacy signatures decoded by key length
+    String sigLegacy;
+    String sigHtml5;
+    URI player;
+
+    @Setup
+    public void setup() throws Exception {
+        html = Fixtures.load("youtube-watch.html");
+        web = new URL("https://www.youtube.com/watch?v=bGHbXOPHsEY");
+        parser = new YouTubeParser();
+        stop = new AtomicBoolean();
+        notify = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        Matcher m = YouTubeParser.ADAPTIVE_FMTS.matcher(html);
+        if (!m.find())
+            throw new RuntimeException("bad fixture");
+        Matcher u = YouTubeParser.ENCOD_URL.matcher(m.group(1));
+        if (!u.find())
+            throw new RuntimeException("bad fixture");
+        urlEncoded = u.group(1);
+
+        decodeScript = Fixtures.load("youtube-decipher.js");
+        sigLegacy = sig(81);
+        sigHtml5 = sig(86);
+        player = new URI("https://s.ytimg.com/yts/jsbin/player-en_US-vflbench/base.js");
+        // player script loaded once per player version, benchmark cached path
+        YouTubeParser.DecryptSignatureHtml5.decoderCache.put(player.toString(), YouTubeDecipher.compile(decodeScript, "Ep"));
+    }
+
+    static String sig(int len) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            sb.append((char) ((i % 10 == 9) ? '.' : 'A' + i % 26));
+        return sb.toString();
+    }
+
+    @Benchmark
+    public List<VideoDownload> extractHtmlInfo() throws Exception {
+        List<VideoDownload> list = new ArrayList<VideoDownload>();
+        YouTubeInfo info = new YouTubeInfo(web);
+        parser.extractHtmlInfo(list, info, html, stop, notify);
+        parser.extractIcon(info, html);
+        return list;
+    }
+
+    @Benchmark
+    public List<VideoDownload> extractUrlEncodedVideos() throws Exception {
+        List<VideoDownload> list = new ArrayList<VideoDownload>();
+        parser.extractUrlEncodedVideos(list, urlEncoded, new YouTubeInfo(web), stop, notify);
+        return list;
+    }
+
+    @Benchmark
+    public Map<String, String> getQueryMap() {
+        return YouTubeParser.getQueryMap(urlEncoded);
+    }
+
+    @Benchmark
+    public boolean watchPage() {
+        YouTubeParser.WatchPage page = new YouTubeParser.WatchPage();
+        page.scan(html);
+        return page.done();
+    }
+
+    @Benchmark
+    public String decryptSignature() {
+        return new YouTubeParser.DecryptSignature(sigLegacy).decrypt();
+    }
+
+    @Benchmark
+    public String decryptSignatureHtml5() {
+        return new YouTubeParser.DecryptSignatureHtml5(sigHtml5, player).decrypt(stop, notify);
+    }
+
+    @Benchmark
+    public YouTubeDecipher decipherCompile() {
+        return YouTubeDecipher.compile(decodeScript, "Ep");
+    }
+
+    @Benchmark
+    public String extractId() {
+        return YouTubeParser.extractId(web);
+    }
+
+}